@@ -2,7 +2,7 @@ package rs.lukaj.httpclient;
 
 
 import java.io.*;
-import java.util.List;
+import java.util.Arrays;
 import java.util.zip.*;
 
 //you know, other stuff
@@ -22,8 +22,25 @@ public class Utils {
     public static byte[] decompress(byte[] data, String encoding) throws IOException {
         if(encoding == null || encoding.equals("identity")) {
             return data;
+        }
+        return decompress(data, 0, data.length, encoding);
+    }
+
+    /**
+     * Decompresses a part of gzip- or deflate-encoded byte array. Unlike {@link #decompress(byte[], String)}, this
+     * always returns a new array (containing only the given part if encoding isn't recognized).
+     * @param data array containing data to decompress
+     * @param offset index of the first byte of data
+     * @param length number of bytes of data
+     * @param encoding encoding
+     * @return decompressed bytes
+     * @throws IOException if {@link GZIPInputStream} throws IOException
+     */
+    public static byte[] decompress(byte[] data, int offset, int length, String encoding) throws IOException {
+        if(encoding == null || encoding.equals("identity")) {
+            return Arrays.copyOfRange(data, offset, offset + length);
         } else if(encoding.equals("gzip") || encoding.equals("deflate")) {
-            ByteArrayInputStream bytein = new ByteArrayInputStream(data);
+            ByteArrayInputStream bytein = new ByteArrayInputStream(data, offset, length);
             InputStream compressed;
             if(encoding.equals("gzip")) compressed = new GZIPInputStream(bytein);
             else compressed = new InflaterInputStream(bytein, new Inflater(false), 512);
@@ -36,7 +53,7 @@ public class Utils {
             return byteout.toByteArray();
         } else {
             System.err.println("Waning: ignoring unknown encoding " + encoding);
-            return data;
+            return Arrays.copyOfRange(data, offset, offset + length);
         }
     }
 
@@ -60,15 +77,4 @@ public class Utils {
             return data;
         }
     }
-
-    public static void append(List<Byte> to, byte[] from) {
-        for(byte b : from) to.add(b);
-    }
-
-    public static byte[] unbox(Byte[] boxed) {
-        byte[] bytes = new byte[boxed.length];
-        for(int i=0; i<boxed.length; i++)
-            bytes[i] = boxed[i];
-        return bytes;
-    }
 }
@@ -0,0 +1,198 @@
+package rs.lukaj.httpclient.connections;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * Transport over a classic, blocking {@link Socket}. Supports both HTTP and HTTPS. Plain HTTP sockets are backed by a
+ * blocking {@link SocketChannel}, so files can be sent to them using {@link FileChannel#transferTo} (i.e. sendfile).
+ */
+class BlockingTransport implements Transport {
+    private static final int FILE_BUFFER_SIZE = 65_536;
+
+    private final Socket socket;
+    private final SocketChannel channel; //null for TLS sockets
+
+    private BlockingTransport(Socket socket, SocketChannel channel) {
+        this.socket = socket;
+        this.channel = channel;
+    }
+
+    /**
+     * Connect to the endpoint, doing the TLS handshake if needed. If endpoint has several addresses, they're raced
+     * (see {@link HappyEyeballs}).
+     * @param endpoint endpoint to connect to
+     * @param tls TLS config used for HTTPS endpoints
+     * @param options options applied to the socket before connecting
+     * @return connected transport
+     * @throws IOException if connection cannot be established
+     */
+    static BlockingTransport open(Endpoint endpoint, TlsConfig tls, SocketOptions options) throws IOException {
+        SocketChannel channel = HappyEyeballs.connect(endpoint, options);
+        try {
+            channel.configureBlocking(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if(!endpoint.isHttps()) return new BlockingTransport(channel.socket(), channel);
+        Socket plain = channel.socket();
+        try {
+            plain.setSoTimeout(SocketOptions.toMillis(options.getReadTimeout())); //so a mute server can't stall the handshake
+            return new BlockingTransport(tls.handshake(plain, endpoint), null);
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for(ByteBuffer buffer : buffers) remaining += buffer.remaining();
+        if(channel != null) {
+            while(remaining > 0) remaining -= channel.write(buffers); //gathering write, i.e. writev
+            return;
+        }
+        //with TLS, each write to the stream becomes at least one record and one syscall, so small writes are merged
+        OutputStream out = socket.getOutputStream();
+        if(buffers.length > 1 && remaining <= BufferPool.MAX_POOLED_SIZE) {
+            ByteBuffer merged = BufferPool.getDefault().lease((int)remaining);
+            try {
+                for(ByteBuffer buffer : buffers) merged.put(buffer);
+                out.write(merged.array(), 0, merged.position());
+            } finally {
+                BufferPool.getDefault().release(merged);
+            }
+        } else {
+            for(ByteBuffer buffer : buffers) {
+                if(buffer.hasArray()) {
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                } else {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    out.write(bytes);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        if(channel != null) {
+            long end = position + count;
+            while(position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if(sent <= 0 && position >= file.size()) throw new EOFException("File is shorter than expected");
+                position += sent;
+            }
+            return;
+        }
+        //TLS has to encrypt everything in user space anyway, so the best we can do is not to allocate
+        ByteBuffer buffer = BufferPool.getDefault().lease((int)Math.min(count, FILE_BUFFER_SIZE));
+        try {
+            OutputStream out = socket.getOutputStream();
+            long end = position + count;
+            while(position < end) {
+                buffer.clear().limit((int)Math.min(buffer.capacity(), end - position));
+                int read = file.read(buffer, position);
+                if(read < 0) throw new EOFException("File is shorter than expected");
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+            out.flush();
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+    }
+
+    @Override
+    public boolean isStale() throws IOException {
+        if(isClosed()) return true;
+        if(channel != null) { //peek by switching to non-blocking mode for a moment
+            synchronized (channel.blockingLock()) {
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) != 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            }
+        }
+        //we can't peek under TLS, so we wait for a record for as short as we can
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(1);
+        try {
+            socket.getInputStream().read();
+            return true; //either closed, or sent something unexpected
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    @Override
+    public void setReadTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+
+    @Override
+    public void writeLater(ByteBuffer[] buffers, Consumer<IOException> done) {
+        try {
+            write(buffers);
+        } catch (IOException e) {
+            done.accept(e);
+            return;
+        }
+        done.accept(null);
+    }
+
+    @Override
+    public boolean whenReadable(Runnable callback) {
+        return false; //reads simply block
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return false;
+    }
+
+    @Override
+    public SSLSession getTlsSession() {
+        return socket instanceof SSLSocket ? ((SSLSocket)socket).getSession() : null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
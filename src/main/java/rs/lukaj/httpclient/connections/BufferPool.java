@@ -0,0 +1,285 @@
+package rs.lukaj.httpclient.connections;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe pool of {@link ByteBuffer}s used for socket I/O, so handling a response doesn't allocate fresh buffers
+ * every time. Buffers are grouped in size classes (powers of two, from {@link #MIN_POOLED_SIZE} to
+ * {@link #MAX_POOLED_SIZE}); leasing returns a buffer from the smallest class which can fit the requested size.
+ * Heap and direct buffers are pooled separately. Requests larger than the largest class are allocated on the spot
+ * and dropped on release.
+ * <br/>
+ * Every leased buffer must be {@link #release(ByteBuffer) released} exactly once and not touched afterwards. To hunt
+ * down buffers which are never returned, turn on {@link #setLeakDetection(boolean) leak detection}.
+ */
+public class BufferPool {
+    public static final int MIN_POOLED_SIZE = 1024;
+    public static final int MAX_POOLED_SIZE = 65_536;
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE)
+            - Integer.numberOfTrailingZeros(MIN_POOLED_SIZE) + 1;
+
+    private static final BufferPool DEFAULT = new BufferPool(64);
+
+    private final int maxPooledPerClass;
+    private final SizeClass[] heap = new SizeClass[CLASS_COUNT];
+    private final SizeClass[] direct = new SizeClass[CLASS_COUNT];
+    private final LongAdder leased = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    private volatile boolean leakDetection = false;
+    private final Map<ByteBuffer, Lease> outstanding = new IdentityHashMap<>(); //ByteBuffer#equals compares contents
+
+    /**
+     * @param maxPooledPerClass how many buffers of each size class (separately for heap and direct) can be kept in
+     *                          the pool; buffers released once the class is full are left to GC
+     */
+    public BufferPool(int maxPooledPerClass) {
+        if(maxPooledPerClass < 0) throw new InvalidConfigException("maxPooledPerClass can't be negative!");
+        this.maxPooledPerClass = maxPooledPerClass;
+        for(int i=0; i<CLASS_COUNT; i++) {
+            heap[i] = new SizeClass(MIN_POOLED_SIZE << i);
+            direct[i] = new SizeClass(MIN_POOLED_SIZE << i);
+        }
+    }
+
+    /**
+     * @return pool shared by all sockets
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    private static int classIndex(int size) {
+        if(size <= MIN_POOLED_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+    }
+
+    /**
+     * Lease a heap buffer with capacity of at least minCapacity. Returned buffer is cleared, and has an accessible
+     * {@link ByteBuffer#array() backing array}, which may be larger than requested.
+     * @param minCapacity minimum capacity of the buffer
+     * @return cleared buffer
+     */
+    public ByteBuffer lease(int minCapacity) {
+        return lease(minCapacity, false);
+    }
+
+    /**
+     * Lease a direct buffer with capacity of at least minCapacity. Direct buffers are more expensive to allocate,
+     * but can be passed to channels without an intermediate copy.
+     * @param minCapacity minimum capacity of the buffer
+     * @return cleared buffer
+     */
+    public ByteBuffer leaseDirect(int minCapacity) {
+        return lease(minCapacity, true);
+    }
+
+    private ByteBuffer lease(int minCapacity, boolean isDirect) {
+        if(minCapacity < 0) throw new IllegalArgumentException("Capacity can't be negative!");
+        leased.increment();
+        ByteBuffer buffer;
+        if(minCapacity <= MAX_POOLED_SIZE) {
+            SizeClass sizeClass = (isDirect ? direct : heap)[classIndex(minCapacity)];
+            buffer = sizeClass.poll();
+            if(buffer == null) {
+                allocated.increment();
+                buffer = allocate(sizeClass.size, isDirect);
+            }
+        } else {
+            allocated.increment();
+            buffer = allocate(minCapacity, isDirect);
+        }
+        if(leakDetection) {
+            synchronized (outstanding) {
+                outstanding.put(buffer, new Lease());
+            }
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int size, boolean isDirect) {
+        return isDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Return the buffer to the pool. Buffer must not be used after it's released. Passing null is a no-op.
+     * With {@link #setLeakDetection(boolean) leak detection} on, releasing a buffer which is already back in the pool
+     * throws, and releasing one which wasn't leased while leak detection was on prints a warning.
+     * @param buffer buffer obtained from this pool
+     * @throws IllegalStateException if leak detection is on and buffer has already been released
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null) return;
+        if(leakDetection) {
+            Lease lease;
+            synchronized (outstanding) {
+                lease = outstanding.remove(buffer);
+            }
+            if(lease == null) {
+                if(isPooled(buffer)) throw new IllegalStateException("Buffer has already been released!");
+                //could've been leased before leak detection was turned on, or released twice and leased again since
+                System.err.println("Warning: releasing a buffer which isn't leased from the pool");
+                new Throwable("Buffer released here").printStackTrace();
+            }
+        }
+        released.increment();
+        int capacity = buffer.capacity();
+        if(capacity > MAX_POOLED_SIZE || capacity < MIN_POOLED_SIZE || Integer.bitCount(capacity) != 1) {
+            discarded.increment();
+            return;
+        }
+        SizeClass sizeClass = (buffer.isDirect() ? direct : heap)[classIndex(capacity)];
+        buffer.clear();
+        if(!sizeClass.offer(buffer, maxPooledPerClass)) discarded.increment();
+    }
+
+    //slow, and only used for leak detection. Queue#contains would compare contents (see ByteBuffer#equals)
+    private boolean isPooled(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if(capacity > MAX_POOLED_SIZE || capacity < MIN_POOLED_SIZE) return false;
+        for(ByteBuffer pooled : (buffer.isDirect() ? direct : heap)[classIndex(capacity)].buffers)
+            if(pooled == buffer) return true;
+        return false;
+    }
+
+    /**
+     * Turn on or off tracking of leased buffers. While it's on, each lease records the stack trace of the caller, so
+     * buffers which haven't been released can be traced back using {@link #getSuspectedLeaks(Duration)}, and buffers
+     * which are released twice are caught. It's meant for debugging; it makes leasing and releasing noticeably
+     * slower.
+     * @param leakDetection whether leases should be tracked
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        if(!leakDetection) {
+            synchronized (outstanding) {
+                outstanding.clear();
+            }
+        }
+    }
+
+    /**
+     * Get the places where buffers which have been leased for longer than the given duration were leased. Works only
+     * if {@link #setLeakDetection(boolean) leak detection} is on.
+     * @param olderThan minimum lease duration for the buffer to be considered leaked
+     * @return exceptions whose stack traces point to the place where leaked buffers were leased
+     */
+    public List<Throwable> getSuspectedLeaks(Duration olderThan) {
+        long threshold = System.currentTimeMillis() - olderThan.toMillis();
+        List<Throwable> leaks = new ArrayList<>();
+        synchronized (outstanding) {
+            for(Lease lease : outstanding.values())
+                if(lease.leasedAt <= threshold) leaks.add(lease.site);
+        }
+        return leaks;
+    }
+
+    /**
+     * @return snapshot of this pool's counters
+     */
+    public Stats getStats() {
+        int pooledHeap = 0, pooledDirect = 0;
+        long pooledBytes = 0;
+        for(int i=0; i<CLASS_COUNT; i++) {
+            int h = heap[i].count.get(), d = direct[i].count.get();
+            pooledHeap += h;
+            pooledDirect += d;
+            pooledBytes += (long)(h + d) * heap[i].size;
+        }
+        return new Stats(leased.sum(), released.sum(), allocated.sum(), discarded.sum(), pooledHeap, pooledDirect,
+                pooledBytes);
+    }
+
+    private static class SizeClass {
+        private final int size;
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger(0); //ConcurrentLinkedQueue#size is O(n)
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+
+        private ByteBuffer poll() {
+            ByteBuffer buffer = buffers.poll();
+            if(buffer != null) count.decrementAndGet();
+            return buffer;
+        }
+
+        private boolean offer(ByteBuffer buffer, int max) {
+            if(count.incrementAndGet() > max) {
+                count.decrementAndGet();
+                return false;
+            }
+            buffers.add(buffer);
+            return true;
+        }
+    }
+
+    private static class Lease {
+        private final long leasedAt = System.currentTimeMillis();
+        private final Throwable site = new Throwable("Buffer leased here");
+    }
+
+    /**
+     * Occupancy and usage counters of a {@link BufferPool}, taken at a single moment.
+     */
+    public static class Stats {
+        /** Total number of leases */
+        public final long leased;
+        /** Total number of releases */
+        public final long released;
+        /** Number of leases which had to allocate a new buffer, because none were pooled */
+        public final long allocated;
+        /** Number of released buffers which weren't pooled, because they were too large or the pool was full */
+        public final long discarded;
+        /** Heap buffers currently sitting in the pool */
+        public final int pooledHeap;
+        /** Direct buffers currently sitting in the pool */
+        public final int pooledDirect;
+        /** Total capacity of all buffers currently in the pool */
+        public final long pooledBytes;
+
+        private Stats(long leased, long released, long allocated, long discarded, int pooledHeap, int pooledDirect,
+                      long pooledBytes) {
+            this.leased = leased;
+            this.released = released;
+            this.allocated = allocated;
+            this.discarded = discarded;
+            this.pooledHeap = pooledHeap;
+            this.pooledDirect = pooledDirect;
+            this.pooledBytes = pooledBytes;
+        }
+
+        /**
+         * @return number of buffers which are leased and not yet released
+         */
+        public long getOutstanding() {
+            return leased - released;
+        }
+
+        /**
+         * @return fraction of leases served from the pool, between 0 and 1
+         */
+        public double getHitRatio() {
+            return leased == 0 ? 0 : 1 - (double)allocated / leased;
+        }
+
+        @Override
+        public String toString() {
+            return "leased=" + leased + ", released=" + released + ", allocated=" + allocated + ", discarded="
+                    + discarded + ", pooledHeap=" + pooledHeap + ", pooledDirect=" + pooledDirect
+                    + ", pooledBytes=" + pooledBytes;
+        }
+    }
+}
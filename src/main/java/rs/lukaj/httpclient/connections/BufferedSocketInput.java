@@ -0,0 +1,230 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * InputStream with an internal read-ahead buffer, used by {@link HttpSocket} for reading responses. Bytes are pulled
+ * from the underlying stream in blocks, so reading status line and headers costs one syscall per block instead of one
+ * per byte. Reads block until data is available; how long they can block is bounded by the read timeout of the
+ * underlying socket (once it passes, {@link java.net.SocketTimeoutException} is thrown). Non-blocking transports can
+ * use {@link #readLineIfReady()} and {@link #bufferIfReady(int)} instead, which only take what's already there.
+ * <br/>
+ * Read-ahead buffer is leased from a {@link BufferPool} and returned to it when this stream is closed.
+ */
+public class BufferedSocketInput extends InputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    /**
+     * Maximum length of a single line, in bytes. Protects us from servers which never send a newline.
+     */
+    public static final int MAX_LINE_LENGTH = 65_536;
+
+    private final InputStream in;
+    private final BufferPool pool;
+    private final ByteBuffer leased;
+    private final byte[] buffer;
+    private int pos = 0, limit = 0;
+    private byte[] lineBuffer; //used only if line doesn't fit in what's currently buffered
+    private int partialLine; //length of the line started in lineBuffer by readLineIfReady, which still has no LF
+    private boolean eof = false;
+    private boolean closed = false;
+
+    /**
+     * @param in raw input stream of the socket
+     */
+    public BufferedSocketInput(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE, BufferPool.getDefault());
+    }
+
+    /**
+     * @param in raw input stream of the socket
+     * @param bufferSize minimum size of the read-ahead buffer
+     * @param pool pool from which the read-ahead buffer is leased
+     */
+    public BufferedSocketInput(InputStream in, int bufferSize, BufferPool pool) {
+        if(bufferSize < 1) throw new IllegalArgumentException("Buffer size must be positive!");
+        this.in = in;
+        this.pool = pool;
+        this.leased = pool.lease(bufferSize);
+        this.buffer = leased.array();
+    }
+
+    private void ensureOpen() throws IOException {
+        if(closed) throw new IOException("Trying to read from closed stream!");
+    }
+
+    //only called when buffer is drained; returns false if end of stream is reached
+    private boolean fill() throws IOException {
+        ensureOpen();
+        if(eof) return false;
+        int read;
+        do {
+            read = in.read(buffer, 0, buffer.length);
+        } while(read == 0); //shouldn't happen with blocking streams, but let's not trust them
+        if(read < 0) {
+            eof = true;
+            return false;
+        }
+        pos = 0;
+        limit = read;
+        return true;
+    }
+
+    /**
+     * @return number of bytes which are buffered, i.e. can be read without touching the underlying stream
+     */
+    public int buffered() {
+        return limit - pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(pos == limit && !fill()) return -1;
+        return buffer[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) return 0;
+        if(pos == limit) {
+            ensureOpen();
+            if(len >= buffer.length && !eof) {
+                //no point in copying large reads twice; buffer is empty, so we can go straight to the stream
+                int read = in.read(b, off, len);
+                if(read < 0) eof = true;
+                return read;
+            }
+            if(!fill()) return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if(n <= 0) return 0;
+        if(pos == limit && !fill()) return 0;
+        int skipped = (int)Math.min(n, limit - pos);
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return buffered() + (eof ? 0 : in.available());
+    }
+
+    /**
+     * Read a line terminated by LF, stripping the terminator and CR preceding it, if any. Bytes are decoded as UTF-8.
+     * @return the line, or null if end of stream is reached before any byte is read
+     * @throws IOException if underlying stream throws or line is longer than {@link #MAX_LINE_LENGTH}
+     */
+    public String readLine() throws IOException {
+        int lineLength = partialLine;
+        partialLine = 0;
+        if(pos == limit && !fill()) return lineLength == 0 ? null : decodeLine(lineBuffer, 0, lineLength);
+        while(true) {
+            int start = pos;
+            while(pos < limit && buffer[pos] != '\n') pos++;
+            int chunkLength = pos - start;
+            if(pos < limit) { //found LF
+                pos++;
+                if(lineLength == 0) return decodeLine(buffer, start, chunkLength); //common case: no copying
+                lineLength = appendToLine(start, chunkLength, lineLength);
+                return decodeLine(lineBuffer, 0, lineLength);
+            }
+            lineLength = appendToLine(start, chunkLength, lineLength);
+            if(!fill()) return decodeLine(lineBuffer, 0, lineLength); //stream ended without newline
+        }
+    }
+
+    /**
+     * Read a line like {@link #readLine()} does, but only if the whole line can be read without blocking, i.e. it's
+     * buffered or the underlying stream has it available. Otherwise, whatever part of the line is there is kept, and
+     * the next call (of either method) continues from it.
+     * @return the line, or null if it hasn't fully arrived yet, or if the stream ended
+     * @throws IOException if underlying stream throws or line is longer than {@link #MAX_LINE_LENGTH}
+     */
+    public String readLineIfReady() throws IOException {
+        while(true) {
+            int start = pos;
+            while(pos < limit && buffer[pos] != '\n') pos++;
+            int chunkLength = pos - start;
+            if(pos < limit) { //found LF
+                pos++;
+                int lineLength = partialLine;
+                partialLine = 0;
+                if(lineLength == 0) return decodeLine(buffer, start, chunkLength);
+                lineLength = appendToLine(start, chunkLength, lineLength);
+                return decodeLine(lineBuffer, 0, lineLength);
+            }
+            if(chunkLength > 0) partialLine = appendToLine(start, chunkLength, partialLine);
+            if(eof || in.available() == 0 || !fill()) return null;
+        }
+    }
+
+    /**
+     * Pull whatever the underlying stream has available into the buffer, without blocking, until at least length
+     * bytes are buffered; once they are, reading them doesn't block.
+     * @param length number of bytes wanted; at most the size of the buffer
+     * @return true if length bytes are buffered, false if they haven't arrived yet, or the stream ended
+     * @throws IOException if underlying stream throws
+     */
+    public boolean bufferIfReady(int length) throws IOException {
+        if(length > buffer.length) throw new IllegalArgumentException("Can't buffer more than " + buffer.length + " bytes!");
+        ensureOpen();
+        if(buffered() >= length) return true;
+        if(pos > 0) { //make room at the end
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while(limit < length && !eof) {
+            int ready = in.available();
+            if(ready == 0) return false;
+            int read = in.read(buffer, limit, Math.min(ready, buffer.length - limit));
+            if(read < 0) eof = true;
+            else limit += read;
+        }
+        return buffered() >= length;
+    }
+
+    /**
+     * @return how many bytes {@link #bufferIfReady(int)} can hold
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    private int appendToLine(int start, int length, int lineLength) throws IOException {
+        int newLength = lineLength + length;
+        if(newLength > MAX_LINE_LENGTH) throw new IOException("Line too long (over " + MAX_LINE_LENGTH + " bytes)");
+        if(lineBuffer == null) lineBuffer = new byte[Math.max(256, newLength)];
+        else if(lineBuffer.length < newLength) lineBuffer = Arrays.copyOf(lineBuffer, Math.max(newLength, lineBuffer.length * 2));
+        System.arraycopy(buffer, start, lineBuffer, lineLength, length);
+        return newLength;
+    }
+
+    private static String decodeLine(byte[] bytes, int offset, int length) {
+        if(length > 0 && bytes[offset + length - 1] == '\r') length--;
+        return new String(bytes, offset, length, UTF_8);
+    }
+
+    /**
+     * Close the underlying stream and return the read-ahead buffer to the pool. Closing multiple times has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        pos = limit = partialLine = 0;
+        pool.release(leased);
+        in.close();
+    }
+}
@@ -0,0 +1,208 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects body bytes arriving in pieces (e.g. chunks of a chunked response) into a list of buffers leased from the
+ * {@link BufferPool}. Segments grow from {@link #FIRST_SEGMENT_SIZE} to {@link BufferPool#MAX_POOLED_SIZE}, so small
+ * bodies stay small and large ones don't need to be copied on every resize.
+ * <br/>
+ * Collected bytes can be obtained as a contiguous array (a copy), a {@link ByteBuffer} or an {@link InputStream}. The
+ * latter two avoid copying when possible, so they're only valid until the aggregator is closed. Closing returns all
+ * segments to the pool.
+ */
+public class ChunkAggregator implements Closeable {
+    public static final int FIRST_SEGMENT_SIZE = 4096;
+    /**
+     * Default limit for aggregated size; protects us from servers which never stop sending.
+     */
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    private final long maxSize;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private ByteBuffer current;
+    private long size = 0;
+    private boolean closed = false;
+
+    /**
+     * Create an aggregator which holds at most {@link #DEFAULT_MAX_SIZE} bytes.
+     */
+    public ChunkAggregator() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize maximum number of bytes this aggregator can hold; at most {@link Integer#MAX_VALUE} - 8 if
+     *                you plan on calling {@link #toByteArray()}
+     */
+    public ChunkAggregator(long maxSize) {
+        if(maxSize < 0) throw new IllegalArgumentException("Max size can't be negative!");
+        this.maxSize = maxSize;
+    }
+
+    private void ensureOpen() {
+        if(closed) throw new IllegalStateException("Aggregator is closed!");
+    }
+
+    private void ensureFits(long additional) throws IOException {
+        ensureOpen();
+        if(size + additional > maxSize)
+            throw new IOException("Aggregated body exceeds limit of " + maxSize + " bytes");
+    }
+
+    //makes sure current segment has room for at least one byte
+    private void nextSegmentIfFull() {
+        if(current == null || !current.hasRemaining()) {
+            int next = current == null ? FIRST_SEGMENT_SIZE : Math.min(current.capacity() * 2, BufferPool.MAX_POOLED_SIZE);
+            current = BufferPool.getDefault().lease(next);
+            segments.add(current);
+        }
+    }
+
+    /**
+     * Append bytes to the end.
+     * @param src array containing the bytes
+     * @param offset index of the first byte
+     * @param length number of bytes to append
+     * @throws IOException if appending would exceed the maximum size
+     */
+    public void append(byte[] src, int offset, int length) throws IOException {
+        ensureFits(length);
+        while(length > 0) {
+            nextSegmentIfFull();
+            int n = Math.min(length, current.remaining());
+            current.put(src, offset, n);
+            offset += n;
+            length -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Read exactly length bytes from the stream straight into segments, without an intermediate array.
+     * @param in stream to read from
+     * @param length number of bytes to read
+     * @throws IOException if appending would exceed maximum size, stream ends prematurely or throws
+     */
+    public void readFrom(InputStream in, long length) throws IOException {
+        ensureFits(length);
+        while(length > 0) {
+            nextSegmentIfFull();
+            int read = in.read(current.array(), current.position(), (int)Math.min(length, current.remaining()));
+            if(read < 0) throw new EOFException("Stream ended before all bytes were read");
+            current.position(current.position() + read);
+            length -= read;
+            size += read;
+        }
+    }
+
+    /**
+     * @return number of aggregated bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Copy all aggregated bytes into a new array. Returned array is independent of this aggregator.
+     * @return aggregated bytes
+     */
+    public byte[] toByteArray() {
+        ensureOpen();
+        if(size > Integer.MAX_VALUE - 8) throw new IllegalStateException("Aggregated body too large for an array");
+        byte[] bytes = new byte[(int)size];
+        int offset = 0;
+        for(ByteBuffer segment : segments) {
+            System.arraycopy(segment.array(), 0, bytes, offset, segment.position());
+            offset += segment.position();
+        }
+        return bytes;
+    }
+
+    /**
+     * Get aggregated bytes as a read-only buffer. If everything fits in one segment, no bytes are copied and the
+     * returned buffer is valid only until this aggregator is closed.
+     * @return buffer positioned at the first byte, with limit at the end of aggregated bytes
+     */
+    public ByteBuffer toByteBuffer() {
+        ensureOpen();
+        if(segments.size() == 1) {
+            ByteBuffer view = segments.get(0).duplicate();
+            view.flip();
+            return view.asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get a stream which reads aggregated bytes directly from segments, without copying them. Closing the stream
+     * closes this aggregator.
+     * @return stream over the aggregated bytes
+     */
+    public InputStream toInputStream() {
+        ensureOpen();
+        return new InputStream() {
+            private int segment = 0, position = 0;
+
+            private ByteBuffer nextSegment() {
+                while(segment < segments.size()) {
+                    ByteBuffer buffer = segments.get(segment);
+                    if(position < buffer.position()) return buffer;
+                    segment++;
+                    position = 0;
+                }
+                return null;
+            }
+
+            @Override
+            public int read() {
+                ensureOpen();
+                ByteBuffer buffer = nextSegment();
+                if(buffer == null) return -1;
+                return buffer.array()[position++] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                ensureOpen();
+                if(len == 0) return 0;
+                ByteBuffer buffer = nextSegment();
+                if(buffer == null) return -1;
+                int n = Math.min(len, buffer.position() - position);
+                System.arraycopy(buffer.array(), position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                ByteBuffer buffer = closed ? null : nextSegment();
+                return buffer == null ? 0 : buffer.position() - position;
+            }
+
+            @Override
+            public void close() {
+                ChunkAggregator.this.close();
+            }
+        };
+    }
+
+    /**
+     * Return all segments to the pool. Buffers and streams obtained from this aggregator can't be used afterwards.
+     * Closing multiple times has no effect.
+     */
+    @Override
+    public void close() {
+        if(closed) return;
+        closed = true;
+        for(ByteBuffer segment : segments) BufferPool.getDefault().release(segment);
+        segments.clear();
+        current = null;
+    }
+}
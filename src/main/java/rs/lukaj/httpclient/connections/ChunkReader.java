@@ -0,0 +1,183 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Decodes a chunked body in background, on the {@link ReaderScheduler}. Decoding is a state machine which consumes
+ * only as many bytes as are available, so when the transport supports readiness notifications (NIO), the reader
+ * gives its thread back once input runs dry and continues on whichever thread is free when more data arrives.
+ * With blocking transports, the reader simply blocks until data arrives, on a thread of its own; if there are already
+ * too many of those (see {@link HttpSocket#setMaxBlockingChunkReaders(int)}), reading fails right away.
+ * <br/>
+ * Unlike {@link ChunkedInputStream}, this accepts chunk extensions and trailers, as the spec says it should.
+ */
+class ChunkReader implements Runnable {
+    private enum State {
+        SIZE, DATA, DATA_END, TRAILERS, DONE
+    }
+
+    private final BufferedSocketInput input;
+    private final Transport transport;
+    private final Executor scheduler; //bounded pool for non-blocking transports; otherwise, a capped thread per reader
+    private final HttpSocket.ChunkCallbacks callbacks;
+    private final Executor callbackExecutor;
+    private final Consumer<Boolean> onFinish;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    //only touched by the thread currently running this reader; handoffs go through the scheduler's queue
+    private State state = State.SIZE;
+    private final StringBuilder line = new StringBuilder(16);
+    private byte[] chunk;
+    private int filled;
+
+    /**
+     * @param input buffered input of the socket, positioned at the start of the body
+     * @param transport transport of the socket, used to wait for data without blocking
+     * @param callbacks callbacks informed about the progress
+     * @param callbackExecutor executor on which callbacks are run; if null, they're run on the reader thread
+     * @param onFinish run once the whole body is read or reading fails, before the final callback; accepts whether
+     *                 reading failed
+     */
+    ChunkReader(BufferedSocketInput input, Transport transport, HttpSocket.ChunkCallbacks callbacks,
+                Executor callbackExecutor, Consumer<Boolean> onFinish) {
+        this.input = input;
+        this.transport = transport;
+        this.scheduler = transport.isNonBlocking() ? ReaderScheduler.get() : ReaderScheduler.blocking();
+        this.callbacks = callbacks;
+        this.callbackExecutor = callbackExecutor;
+        this.onFinish = onFinish;
+    }
+
+    /**
+     * Schedule reading on the shared scheduler. If no more blocking readers are allowed, nothing is read, and reading
+     * fails with an IOException.
+     * @return future completed once the final callback ({@link HttpSocket.ChunkCallbacks#onEndTransfer()} or
+     * {@link HttpSocket.ChunkCallbacks#onExceptionThrown(IOException)}) has run
+     */
+    CompletableFuture<Void> start() {
+        try {
+            scheduler.execute(this);
+        } catch (RejectedExecutionException e) {
+            onFinish.accept(false); //body is untouched, so socket can still be drained or read from
+            fail(new IOException("Too many chunked responses are being read in background (max "
+                    + ReaderScheduler.getMaxBlocking() + ")", e));
+        }
+        return completion;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(state != State.DONE) {
+                //if there's nothing to read, wait for the event loop to resubmit us instead of blocking the thread
+                if(input.available() == 0 && transport.whenReadable(() -> scheduler.execute(this)))
+                    return;
+                step();
+            }
+        } catch (IOException | RuntimeException e) {
+            onFinish.accept(true);
+            fail(e instanceof IOException ? (IOException)e : new IOException("Error while reading chunks", e));
+            return;
+        }
+        onFinish.accept(false);
+        dispatch(() -> {
+            try {
+                callbacks.onEndTransfer();
+                completion.complete(null);
+            } catch (RuntimeException e) {
+                completion.completeExceptionally(e);
+                throw e;
+            }
+        });
+    }
+
+    //consumes at least one byte; blocks only if nothing is available
+    private void step() throws IOException {
+        switch (state) {
+            case SIZE:
+                if(!readLine()) return;
+                int ext = line.indexOf(";");
+                String size = (ext >= 0 ? line.substring(0, ext) : line.toString()).trim();
+                line.setLength(0);
+                long length;
+                try {
+                    length = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Ill-formed chunk size: " + size);
+                }
+                if(length < 0 || length > Integer.MAX_VALUE - 8) throw new IOException("Invalid chunk size: " + size);
+                if(length == 0) {
+                    state = State.TRAILERS;
+                } else {
+                    chunk = new byte[(int)length];
+                    filled = 0;
+                    state = State.DATA;
+                }
+                break;
+            case DATA:
+                int read = input.read(chunk, filled, chunk.length - filled); //returns what's there if anything is
+                if(read < 0) throw new EOFException("Connection closed in the middle of a chunk");
+                filled += read;
+                if(filled == chunk.length) {
+                    byte[] received = chunk;
+                    chunk = null;
+                    dispatch(() -> callbacks.onChunkReceived(received));
+                    state = State.DATA_END;
+                }
+                break;
+            case DATA_END:
+                if(!readLine()) return;
+                if(line.length() != 0) throw new IOException("Ill-formed chunk: no CRLF at the end");
+                state = State.SIZE;
+                break;
+            case TRAILERS:
+                if(!readLine()) return;
+                if(line.length() == 0) {
+                    state = State.DONE;
+                } else {
+                    String trailer = line.toString();
+                    dispatch(() -> callbacks.onTrailer(trailer));
+                }
+                line.setLength(0);
+                break;
+        }
+    }
+
+    //reads bytes into line until LF, stripping it and preceding CR; returns true once the whole line is read
+    private boolean readLine() throws IOException {
+        int available = Math.max(1, input.available());
+        for(int i=0; i<available; i++) {
+            int b = input.read();
+            if(b < 0) throw new EOFException("Connection closed while reading chunks");
+            if(b == '\n') {
+                int last = line.length() - 1;
+                if(last >= 0 && line.charAt(last) == '\r') line.setLength(last);
+                return true;
+            }
+            if(line.length() >= BufferedSocketInput.MAX_LINE_LENGTH)
+                throw new IOException("Line too long (over " + BufferedSocketInput.MAX_LINE_LENGTH + " bytes)");
+            line.append((char)b); //header fields are ASCII; anything else is taken as ISO-8859-1
+        }
+        return false;
+    }
+
+    private void fail(IOException ex) {
+        dispatch(() -> {
+            try {
+                callbacks.onExceptionThrown(ex);
+            } finally {
+                completion.completeExceptionally(ex);
+            }
+        });
+    }
+
+    private void dispatch(Runnable callback) {
+        if(callbackExecutor != null) callbackExecutor.execute(callback);
+        else callback.run();
+    }
+}
@@ -1,5 +1,6 @@
 package rs.lukaj.httpclient.connections;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -17,7 +18,8 @@ public class ChunkedInputStream extends InputStream {
     private boolean beginning = true;
 
     /**
-     * @param socketStream input stream with data from server
+     * @param socketStream input stream with data from server; should be buffered (e.g. {@link BufferedSocketInput}),
+     *                     because chunk sizes are parsed byte by byte
      */
     public ChunkedInputStream(InputStream socketStream) {
         in = socketStream;
@@ -41,6 +43,21 @@ public class ChunkedInputStream extends InputStream {
         }
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if(len == 0) return 0;
+        if(end) return -1;
+        if(remaining == 0) {
+            enterChunk();
+            if(end) return -1;
+        }
+        int read = in.read(b, off, (int)Math.min(len, remaining)); //never reading past the end of current chunk
+        if(read < 0) throw new EOFException("Connection closed in the middle of a chunk");
+        remaining -= read;
+        return read;
+    }
+
     private void enterChunk() throws IOException {
         if(!beginning) {
             int current = in.read(), next = in.read();
@@ -89,6 +106,7 @@ public class ChunkedInputStream extends InputStream {
      * @throws IOException
      */
     public boolean hasMoreChunks() throws IOException {
+        if(end) return false; //anything after the last chunk isn't ours
         if(remaining != 0) return true;
         else enterChunk();
         return !end;
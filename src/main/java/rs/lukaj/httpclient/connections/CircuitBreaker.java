@@ -0,0 +1,347 @@
+package rs.lukaj.httpclient.connections;
+
+import java.time.Duration;
+
+/**
+ * Circuit breaker of a single endpoint in a {@link ConfigurableConnectionPool}. While the endpoint works, breaker is
+ * {@link State#CLOSED} and keeps outcomes of the most recent calls in a sliding window. A call fails if connecting
+ * fails or an I/O operation on the connection throws (including read timeouts), and it's slow if the first byte of
+ * the response took longer than the slow call duration. Breaker trips (goes {@link State#OPEN}) once there are too
+ * many consecutive failures, or once the window is full enough and the rate of failed or slow calls gets too high.
+ * <br/>
+ * While it's open, acquiring a connection to the endpoint fails right away with {@link CircuitOpenException}, and
+ * callers already waiting for one are failed the same way, so threads don't pile up waiting on a dead server. After
+ * the open duration, breaker goes {@link State#HALF_OPEN} and lets a few probe calls through: if they all succeed it
+ * closes again, and if any of them fails or is slow it opens for another round.
+ * <br/>
+ * Breakers are created by the pool if it's configured with {@link ConfigurableConnectionPool.Config#setCircuitBreaker(Config)}.
+ */
+public class CircuitBreaker {
+    public enum State {
+        /**
+         * Endpoint is working; all calls are let through.
+         */
+        CLOSED,
+        /**
+         * Endpoint is failing; no calls are let through until open duration passes.
+         */
+        OPEN,
+        /**
+         * Open duration has passed; a limited number of probe calls is let through to check whether endpoint works.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Notified when breaker changes state.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread which caused the change, outside of any locks. Should be quick.
+         * @param endpoint endpoint whose breaker changed state
+         * @param from previous state
+         * @param to new state
+         */
+        void onStateChange(Endpoint endpoint, State from, State to);
+    }
+
+    /**
+     * Handed out for each call let through. It has to come back with the call's outcome ({@link #record}), or be
+     * {@link #release}d if the call ended without one, so probes which never report don't hold their slots.
+     */
+    static final class Permit {
+        private final long round; //half-open round the probe was let through in; -1 if it isn't a probe
+        private boolean done; //guarded by the breaker
+
+        private Permit(long round) {
+            this.round = round;
+        }
+    }
+
+    private static final Permit NOT_PROBE = new Permit(-1);
+
+    private final Endpoint endpoint;
+    private final Config config;
+    private final Runnable onOpen;
+    private volatile State state = State.CLOSED;
+    //all of the following are guarded by this
+    private final boolean[] failed, slow; //sliding window, as a ring
+    private int next, recorded, failures, slowCalls, consecutiveFailures;
+    private long openedAt;
+    private int probes, probesSucceeded;
+    private long lastProbeAt;
+    private long round; //only probes of the current round count
+
+    /**
+     * @param endpoint endpoint this breaker guards
+     * @param config thresholds; copied, so later changes don't affect this breaker
+     * @param onOpen called (outside of locks) each time breaker opens
+     */
+    CircuitBreaker(Endpoint endpoint, Config config, Runnable onOpen) {
+        this.endpoint = endpoint;
+        this.config = new Config(config);
+        this.onOpen = onOpen;
+        this.failed = new boolean[config.windowSize];
+        this.slow = new boolean[config.windowSize];
+    }
+
+    /**
+     * @return current state of the breaker
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return endpoint this breaker guards
+     */
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Check whether a call can go through, counting it as a probe if breaker is half-open.
+     * @return permit to hand back with the outcome of the call
+     * @throws CircuitOpenException if breaker is open, or half-open with all probes in flight
+     */
+    Permit acquirePermission() throws CircuitOpenException {
+        if(state == State.CLOSED) return NOT_PROBE;
+        Permit permit = NOT_PROBE;
+        boolean halfOpened = false;
+        synchronized (this) {
+            long now = System.nanoTime(), openFor = config.openDuration.toNanos();
+            if(state == State.OPEN) {
+                long remaining = openedAt + openFor - now;
+                if(remaining > 0) throw new CircuitOpenException(endpoint, Duration.ofNanos(remaining));
+                state = State.HALF_OPEN;
+                probes = probesSucceeded = 0;
+                round++;
+                halfOpened = true;
+            }
+            if(state == State.HALF_OPEN) {
+                if(probes >= config.halfOpenProbes) {
+                    //probes which didn't report back for a whole open duration probably never sent anything
+                    if(now - lastProbeAt < openFor) throw new CircuitOpenException(endpoint, Duration.ZERO);
+                    probes = probesSucceeded;
+                    round++; //if they do report after all, it's not counted
+                }
+                probes++;
+                lastProbeAt = now;
+                permit = new Permit(round);
+            }
+        }
+        if(halfOpened) changed(State.OPEN, State.HALF_OPEN);
+        return permit;
+    }
+
+    /**
+     * Give back the permit of a call which ended without an outcome (e.g. it timed out waiting for a connection, or
+     * connection was released before anything was sent), freeing its probe slot. Does nothing if the outcome was
+     * already recorded.
+     * @param permit permit the call was let through with, or null
+     */
+    void release(Permit permit) {
+        if(permit == null || permit == NOT_PROBE) return;
+        synchronized (this) {
+            if(permit.done) return;
+            permit.done = true;
+            if(state == State.HALF_OPEN && permit.round == round) probes--;
+        }
+    }
+
+    /**
+     * @return exception for calls which aren't let through, telling them how long breaker stays open
+     */
+    synchronized CircuitOpenException openException() {
+        long remaining = state != State.OPEN ? 0 : openedAt + config.openDuration.toNanos() - System.nanoTime();
+        return new CircuitOpenException(endpoint, Duration.ofNanos(Math.max(0, remaining)));
+    }
+
+    /**
+     * Record outcome of a call. While half-open, only outcomes of this round's probes count; calls let through
+     * before breaker opened don't say anything about whether endpoint has recovered.
+     * @param permit permit the call was let through with, or null if it didn't ask for one (e.g. prewarming)
+     * @param failed whether the call failed
+     * @param responseNanos time until the first byte of the response, if call didn't fail
+     */
+    void record(Permit permit, boolean failed, long responseNanos) {
+        boolean slow = !failed && responseNanos >= config.slowCallDuration.toNanos();
+        State from = null, to = null;
+        synchronized (this) {
+            boolean probe = permit != null && permit != NOT_PROBE;
+            if(probe) {
+                if(permit.done) return;
+                permit.done = true;
+            }
+            switch (state) {
+                case OPEN: //a late result of a call let through before breaker tripped
+                    return;
+                case HALF_OPEN:
+                    if(!probe || permit.round != round) return;
+                    if(failed || slow) {
+                        from = State.HALF_OPEN;
+                        to = trip();
+                    } else if(++probesSucceeded >= config.halfOpenProbes) {
+                        from = State.HALF_OPEN;
+                        to = reset();
+                    }
+                    break;
+                case CLOSED:
+                    if(recorded == this.failed.length) { //window is full, the oldest one goes out
+                        if(this.failed[next]) failures--;
+                        if(this.slow[next]) slowCalls--;
+                    } else {
+                        recorded++;
+                    }
+                    this.failed[next] = failed;
+                    this.slow[next] = slow;
+                    next = (next + 1) % this.failed.length;
+                    if(failed) failures++;
+                    if(slow) slowCalls++;
+                    consecutiveFailures = failed ? consecutiveFailures + 1 : 0;
+                    if(shouldTrip()) {
+                        from = State.CLOSED;
+                        to = trip();
+                    }
+            }
+        }
+        if(to != null) changed(from, to);
+    }
+
+    private boolean shouldTrip() {
+        if(consecutiveFailures >= config.consecutiveFailures) return true;
+        if(recorded < config.minimumCalls) return false;
+        return failures >= config.failureRate * recorded || slowCalls >= config.slowCallRate * recorded;
+    }
+
+    private State trip() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        return State.OPEN;
+    }
+
+    private State reset() {
+        state = State.CLOSED;
+        next = recorded = failures = slowCalls = consecutiveFailures = 0;
+        return State.CLOSED;
+    }
+
+    private void changed(State from, State to) {
+        if(to == State.OPEN) onOpen.run();
+        Listener listener = config.listener;
+        if(listener != null) listener.onStateChange(endpoint, from, to);
+    }
+
+    /**
+     * Thresholds of circuit breakers. Each endpoint gets its own breaker, with its own copy of the config.
+     */
+    public static class Config {
+        private int consecutiveFailures = 5;
+        private double failureRate = 0.5;
+        private Duration slowCallDuration = Duration.ofSeconds(10);
+        private double slowCallRate = 1;
+        private int windowSize = 20;
+        private int minimumCalls = 10;
+        private Duration openDuration = Duration.ofSeconds(10);
+        private int halfOpenProbes = 3;
+        private Listener listener;
+
+        public Config() {
+        }
+
+        private Config(Config other) {
+            this.consecutiveFailures = other.consecutiveFailures;
+            this.failureRate = other.failureRate;
+            this.slowCallDuration = other.slowCallDuration;
+            this.slowCallRate = other.slowCallRate;
+            this.windowSize = other.windowSize;
+            this.minimumCalls = Math.min(other.minimumCalls, other.windowSize);
+            this.openDuration = other.openDuration;
+            this.halfOpenProbes = other.halfOpenProbes;
+            this.listener = other.listener;
+        }
+
+        /**
+         * Sets after how many failures in a row breaker trips, regardless of the window.
+         * @param consecutiveFailures number of consecutive failed calls
+         */
+        public void setConsecutiveFailures(int consecutiveFailures) {
+            if(consecutiveFailures < 1) throw new InvalidConfigException("consecutiveFailures must be positive!");
+            this.consecutiveFailures = consecutiveFailures;
+        }
+
+        /**
+         * Sets the fraction of failed calls in the window at which breaker trips.
+         * @param failureRate fraction of failed calls, greater than 0 and at most 1
+         */
+        public void setFailureRate(double failureRate) {
+            if(failureRate <= 0 || failureRate > 1) throw new InvalidConfigException("failureRate must be in (0, 1]!");
+            this.failureRate = failureRate;
+        }
+
+        /**
+         * Sets how long until the first byte of response a call can take before it counts as slow.
+         * @param slowCallDuration time to first byte of a slow call
+         */
+        public void setSlowCallDuration(Duration slowCallDuration) {
+            if(slowCallDuration.isNegative() || slowCallDuration.isZero())
+                throw new InvalidConfigException("slowCallDuration must be positive!");
+            this.slowCallDuration = slowCallDuration;
+        }
+
+        /**
+         * Sets the fraction of slow calls in the window at which breaker trips. By default it's 1, i.e. it trips only
+         * if all calls are slow.
+         * @param slowCallRate fraction of slow calls, greater than 0 and at most 1
+         */
+        public void setSlowCallRate(double slowCallRate) {
+            if(slowCallRate <= 0 || slowCallRate > 1) throw new InvalidConfigException("slowCallRate must be in (0, 1]!");
+            this.slowCallRate = slowCallRate;
+        }
+
+        /**
+         * Sets how many of the most recent calls are taken into account for failure and slow call rates.
+         * @param windowSize number of calls in the sliding window
+         */
+        public void setWindowSize(int windowSize) {
+            if(windowSize < 1) throw new InvalidConfigException("windowSize must be positive!");
+            this.windowSize = windowSize;
+        }
+
+        /**
+         * Sets how many calls there need to be in the window before rates are looked at, so a single failure doesn't
+         * trip the breaker. Capped at window size.
+         * @param minimumCalls minimum number of recorded calls
+         */
+        public void setMinimumCalls(int minimumCalls) {
+            if(minimumCalls < 1) throw new InvalidConfigException("minimumCalls must be positive!");
+            this.minimumCalls = minimumCalls;
+        }
+
+        /**
+         * Sets for how long breaker stays open before letting probe calls through.
+         * @param openDuration time breaker stays open
+         */
+        public void setOpenDuration(Duration openDuration) {
+            if(openDuration.isNegative() || openDuration.isZero()) throw new InvalidConfigException("openDuration must be positive!");
+            this.openDuration = openDuration;
+        }
+
+        /**
+         * Sets how many probe calls are let through while half-open. All of them have to succeed for breaker to close.
+         * @param halfOpenProbes number of probe calls
+         */
+        public void setHalfOpenProbes(int halfOpenProbes) {
+            if(halfOpenProbes < 1) throw new InvalidConfigException("halfOpenProbes must be positive!");
+            this.halfOpenProbes = halfOpenProbes;
+        }
+
+        /**
+         * Sets listener notified of state changes of all breakers created with this config.
+         * @param listener listener, or null for none
+         */
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Thrown instead of connecting to an endpoint whose {@link CircuitBreaker} is open, i.e. which has been failing
+ * recently. Nothing is sent to the server.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final Endpoint endpoint;
+    private final Duration retryAfter;
+
+    public CircuitOpenException(Endpoint endpoint, Duration retryAfter) {
+        super("Circuit breaker for " + endpoint.getHost() + ":" + endpoint.getPort() + " is open; retry after "
+                + retryAfter.toMillis() + "ms");
+        this.endpoint = endpoint;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return endpoint which isn't being connected to
+     */
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return how long until breaker lets a probe request through; zero if it's already letting them through, but
+     *         as many as allowed are in flight
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -1,25 +1,68 @@
 package rs.lukaj.httpclient.connections;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Connection pool which can be configured using values in {@link Config}.
+ * <br/>
+ * Each endpoint has its own sub-pool with its own lock, and the pool-wide connection count is a lock-free counter,
+ * so callers going to different hosts don't contend. New connections are opened outside of any lock: a slot is
+ * reserved first, and the (possibly slow) TCP and TLS handshakes happen afterwards.
+ * <br/>
+ * Callers which can't get a connection right away wait in their endpoint's queue and are served in order of
+ * arrival: released connections are handed directly to the longest-waiting caller for that endpoint, and when a
+ * connection is closed, a waiter which can use the freed slot is woken up to open a new one. If the pool-wide limit
+ * is what keeps an endpoint waiting, an idle connection to some other endpoint is closed to make room; if there
+ * are none, the endpoint is queued for the next slot freed anywhere in the pool.
+ * Asynchronous callers wait in the same queues; their timeouts are driven by a timer shared by all pools,
+ * connections are opened on a shared executor, and callbacks are run on a fixed number of shared threads, so the
+ * number of threads doesn't grow with the number of waiting callers.
+ * <br/>
+ * Idle connections are evicted in background, every {@link Config#setReapInterval(Duration) reap interval}: those
+ * which idled for longer than aliveTime or lived for longer than maxAge are closed, and so are those which the
+ * server has closed or sent something to while they were idle. Acquiring a connection only touches its endpoint's
+ * idle connections, and by default takes the most recently released one (see {@link SelectionPolicy}).
+ * <br/>
+ * If pipelining is turned on ({@link Config#setPipelineDepth(int)}), requests sent using
+ * {@link #sendPipelined(HttpRequest)} share connections which already have requests in flight, up to the depth.
+ * <br/>
+ * Pool keeps counts of what happens to its connections and how long callers wait, per endpoint; see
+ * {@link #getStats()}, or {@link #registerMBean(String)} to watch them over JMX.
+ * <br/>
+ * Pool should be {@link #close() closed} once it isn't needed anymore, so its background work stops.
  * @inheritDoc
  */
-public class ConfigurableConnectionPool implements ConnectionPool {
+public class ConfigurableConnectionPool implements ConnectionPool, HttpSocket.Owner, HttpPipeline.Owner, Closeable {
 
+    private final Map<Endpoint, EndpointPool> pools = new ConcurrentHashMap<>();
     /**
-     * List of all connections for each Endpoint
+     * Number of connections in all endpoints, including those which are being opened.
      */
-    private Map<Endpoint, List<HttpSocket>> connections = new ConcurrentHashMap<>();
-    private AtomicInteger connectionCount = new AtomicInteger(0);
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+    /**
+     * Endpoints whose waiters could open a connection if it weren't for the pool-wide limit, in order of arrival.
+     */
+    private final Queue<EndpointPool> starved = new ConcurrentLinkedQueue<>();
     private Config config;
-    private final Object lock = new Object();
+    private final AtomicBoolean reaperScheduled = new AtomicBoolean(false);
+    private volatile WheelTimer.Timeout reaper;
+    private volatile boolean closed;
 
     public ConfigurableConnectionPool(Config config) {
         this.config = config;
@@ -53,116 +96,885 @@ public class ConfigurableConnectionPool implements ConnectionPool {
      * @throws IOException
      */
     public int getPoolSize() throws IOException {
-        cleanupConnections();
-        return connectionCount.get();
+        int size = 0;
+        for(EndpointPool pool : pools.values()) {
+            pool.lock.lock();
+            try {
+                size += pool.connections.size();
+            } finally {
+                pool.lock.unlock();
+            }
+        }
+        return size;
     }
 
-    //in retrospect, some callback like 'hey pool, this connection is released' should've been better
-    //though cleaning up dead connections would still need to be handled
+    /**
+     * Get a connection, waiting in line if none are available. Unlike what {@link ConnectionPool} allows, this is
+     * first-come first-serve among callers waiting for the same endpoint: a newly arrived caller takes a free
+     * connection only if nobody is already waiting for that endpoint.
+     * @inheritDoc
+     */
     public HttpSocket getConnectionBlocking(Endpoint endpoint) throws IOException, TimeoutException {
-        long start = System.currentTimeMillis(); //we need to measure how long the caller is waiting for connection
-        List<HttpSocket> conns;
+        ensureOpen();
+        EndpointPool pool = pool(endpoint);
+        CircuitBreaker breaker = pool.breaker;
+        CircuitBreaker.Permit permit = breaker == null ? null : breaker.acquirePermission();
+        HttpSocket conn = null;
+        try {
+            conn = acquire(pool, permit);
+        } finally {
+            if(conn == null && breaker != null) breaker.release(permit); //unless opening failed and was recorded
+        }
+        conn.setPermit(permit);
+        return conn;
+    }
 
-        do {
-            synchronized (lock) { //if we synchronize over the whole method, we can't keep track for how long
-                                  // the thread is blocked (which should, intuitively, be included in wait time
-                conns = connections.get(endpoint);
-                HttpSocket conn = tryAcquireConnection(endpoint, conns);
-                if (conn != null) {
-                    if (conns == null) {
-                        List<HttpSocket> c = new ArrayList<>();
-                        c.add(conn);
-                        connections.put(endpoint, c);
-                    }
-                    return conn;
+    private HttpSocket acquire(EndpointPool pool, CircuitBreaker.Permit permit) throws IOException, TimeoutException {
+        long start = System.nanoTime(), deadline = start + config.maxWait.toNanos();
+        while(true) {
+            EndpointPool.Waiter waiter = null;
+            HttpSocket conn = null;
+            pool.lock.lock();
+            try {
+                if(pool.waiters.isEmpty()) {
+                    conn = takeIdle(pool);
+                    if(conn == null && !reserve(pool)) waiter = new EndpointPool.Waiter(pool.lock.newCondition());
+                } else {
+                    waiter = new EndpointPool.Waiter(pool.lock.newCondition());
                 }
+                if(waiter != null) {
+                    if(closed) throw closedException(); //closed after we checked, and it won't serve anyone now
+                    pool.waiters.addLast(waiter);
+                    if(canOpen(pool)) waiter.retry = true;
+                    conn = await(pool, waiter, deadline);
+                }
+            } finally {
+                pool.lock.unlock();
+                if(waiter != null && waiter.passSlot) signalCapacity();
             }
-            try {
-                Thread.sleep(config.waitTime.toMillis());
-            } catch (InterruptedException interrupt) {
-                throw new TimeoutException("Cannot obtain connection; try again later.");
+            if(conn == null) {
+                conn = open(pool, permit); //we've reserved a slot
+                pool.metrics.acquired(start, false);
+                return conn;
             }
-        } while(Duration.ofMillis(System.currentTimeMillis() - start).compareTo(config.maxWait) < 0 &&
-                ((conns != null && conns.size() > config.maxConnections) || connectionCount.get() > config.maxConnections));
-        throw new TimeoutException("Cannot obtain connection; try again later.");
+            if(waiter != null && waiter.socket == conn) return conn; //released just now, so there's nothing to check
+            if(validate(pool, conn)) {
+                pool.metrics.acquired(start, true);
+                return conn;
+            }
+        }
     }
 
-    public void getConnectionAsync(Endpoint endpoint, ConnectionPool.Callbacks callbacks) {
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            private long start = System.currentTimeMillis();
-            private List<HttpSocket> conns = connections.get(endpoint);
-            @Override
-            public void run() {
-                if(Duration.ofMillis(System.currentTimeMillis() - start).compareTo(config.maxWait) > 0) {
-                    timer.cancel();
-                    callbacks.onTimeout();
-                    return;
+    //called with pool's lock held; returns a connection handed to the waiter, an idle one which still has to be
+    //validated, or null if waiter reserved a slot
+    private HttpSocket await(EndpointPool pool, EndpointPool.Waiter waiter, long deadline)
+            throws IOException, TimeoutException {
+        try {
+            while(true) {
+                if(waiter.socket != null) return waiter.socket; //handed to us by onReleased
+                if(waiter.failure != null) throw waiter.failure;
+                if(waiter.retry) { //a slot was freed; we keep our place in line if it's taken already
+                    waiter.retry = false;
+                    HttpSocket conn = takeIdle(pool);
+                    if(conn != null) return conn;
+                    if(reserve(pool)) return null;
+                    //we might've missed the slot freed just before getting into the starved queue
+                    if(canOpen(pool)) {
+                        waiter.retry = true;
+                        continue;
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    pool.metrics.timeouts.increment();
+                    throw new TimeoutException("Cannot obtain connection; try again later.");
                 }
                 try {
-                    synchronized (lock) {
-                        conns = connections.get(endpoint);
-                        HttpSocket conn = tryAcquireConnection(endpoint, conns);
-                        if (conn != null) {
-                            if (conns == null) {
-                                List<HttpSocket> c = new ArrayList<>();
-                                c.add(conn);
-                                connections.put(endpoint, c);
-                            }
-                            timer.cancel();
-                            callbacks.onConnectionObtained(conn);
-                        }
-                    }
-                } catch (IOException e) {
-                    timer.cancel();
-                    callbacks.onExceptionThrown(e);
+                    waiter.ready.awaitNanos(remaining);
+                } catch (InterruptedException interrupt) {
+                    Thread.currentThread().interrupt();
+                    if(waiter.socket != null) return waiter.socket;
+                    pool.metrics.timeouts.increment();
+                    throw new TimeoutException("Cannot obtain connection; try again later.");
+                }
+            }
+        } finally {
+            pool.waiters.remove(waiter);
+            //if we're leaving after being told a slot is free without using it, let someone else try
+            if(waiter.retry) {
+                waiter.retry = false;
+                waiter.passSlot = !wakeWaiter(pool);
+            }
+        }
+    }
+
+    /**
+     * Get a connection without blocking. Caller waits in the same queue as blocking callers. Callbacks are run on a
+     * fixed number of threads shared by all pools, so they should be quick and hand any real work off to their own
+     * executor (like {@link HttpRequest#connectLater(ConnectionPool, ConnectionPool.Callbacks, Executor)} does);
+     * slow callbacks hold up callbacks of everyone else.
+     * @inheritDoc
+     */
+    public void getConnectionAsync(Endpoint endpoint, ConnectionPool.Callbacks callbacks) {
+        ensureOpen();
+        EndpointPool pool = pool(endpoint);
+        CircuitBreaker breaker = pool.breaker;
+        EndpointPool.Waiter waiter = new EndpointPool.Waiter(callbacks);
+        if(breaker != null) {
+            try {
+                waiter.permit = breaker.acquirePermission();
+            } catch (CircuitOpenException e) {
+                PoolScheduler.callbacks().execute(() -> callbacks.onExceptionThrown(e));
+                return;
+            }
+        }
+        acquireAsync(pool, waiter);
+    }
+
+    //takes an idle connection or a slot for an async caller, or puts it in line; called again if the idle connection
+    //it got turns out to be stale
+    private void acquireAsync(EndpointPool pool, EndpointPool.Waiter waiter) {
+        HttpSocket conn = null;
+        boolean reserved = false;
+        pool.lock.lock();
+        try {
+            if(pool.waiters.isEmpty()) {
+                conn = takeIdle(pool);
+                if(conn == null) reserved = reserve(pool);
+            }
+            if(conn == null && !reserved && closed) {
+                waiter.failure = closedException();
+            } else if(conn == null && !reserved) {
+                long remaining = Math.max(0, config.maxWait.toNanos() - (System.nanoTime() - waiter.since));
+                waiter.timeout = PoolScheduler.timer().schedule(() -> timeOut(pool, waiter), remaining, TimeUnit.NANOSECONDS);
+                pool.waiters.addLast(waiter);
+                if(canOpen(pool)) {
+                    waiter.retry = true;
+                    PoolScheduler.executor().execute(() -> retryAsync(pool, waiter));
                 }
             }
-        }, 0, config.waitTime.toMillis());
+        } finally {
+            pool.lock.unlock();
+        }
+        if(waiter.failure != null) {
+            if(pool.breaker != null) pool.breaker.release(waiter.permit);
+            PoolScheduler.callbacks().execute(() -> waiter.callbacks.onExceptionThrown(waiter.failure));
+        } else if(conn != null) {
+            HttpSocket candidate = conn;
+            PoolScheduler.executor().execute(() -> obtainIdle(pool, waiter, candidate));
+        } else if(reserved) {
+            //opening a connection blocks, so it's done on the executor
+            PoolScheduler.executor().execute(() -> openAsync(pool, waiter));
+        }
+    }
+
+    //hands an idle connection to an async caller once it's validated, or looks for another one; runs on the executor
+    private void obtainIdle(EndpointPool pool, EndpointPool.Waiter waiter, HttpSocket conn) {
+        if(!validate(pool, conn)) {
+            acquireAsync(pool, waiter);
+            return;
+        }
+        pool.metrics.acquired(waiter.since, true);
+        conn.setPermit(waiter.permit);
+        PoolScheduler.callbacks().execute(() -> waiter.callbacks.onConnectionObtained(conn));
     }
 
-    private HttpSocket tryAcquireConnection(Endpoint endpoint, List<HttpSocket> pool) throws IOException {
-        cleanupConnections();
-        if(pool != null) {
-            for(HttpSocket conn : pool) {
-                if(conn.acquireIfIdle()) return conn;
+    private void openAsync(EndpointPool pool, EndpointPool.Waiter waiter) {
+        HttpSocket conn;
+        try {
+            conn = open(pool, waiter.permit);
+        } catch (IOException e) {
+            PoolScheduler.callbacks().execute(() -> waiter.callbacks.onExceptionThrown(e));
+            return;
+        }
+        pool.metrics.acquired(waiter.since, false);
+        conn.setPermit(waiter.permit);
+        PoolScheduler.callbacks().execute(() -> waiter.callbacks.onConnectionObtained(conn));
+    }
+
+    //tries acquiring or opening a connection for an async waiter which was told there's room; runs on the executor
+    private void retryAsync(EndpointPool pool, EndpointPool.Waiter waiter) {
+        HttpSocket conn = null;
+        boolean reserved = false, passSlot = false;
+        pool.lock.lock();
+        try {
+            if(!waiter.retry) return; //timed out in the meantime
+            waiter.retry = false;
+            if(!pool.waiters.contains(waiter)) { //a released connection was handed to it in the meantime
+                passSlot = !wakeWaiter(pool);
+                return;
             }
-            if(pool.size() < config.maxConnectionsPerEndpoint && connectionCount.get() < config.maxConnections) {
-                return makeConnection(endpoint, pool);
+            conn = takeIdle(pool);
+            if(conn == null) reserved = reserve(pool);
+            if(conn != null || reserved) {
+                pool.waiters.remove(waiter);
+            } else if(canOpen(pool)) {
+                waiter.retry = true; //we might've missed the slot freed just before getting into the starved queue
+                PoolScheduler.executor().execute(() -> retryAsync(pool, waiter));
             }
+        } finally {
+            pool.lock.unlock();
+            if(passSlot) signalCapacity();
+        }
+        if(conn == null && !reserved) return; //someone took the slot; we keep our place in line
+        waiter.timeout.cancel();
+        if(conn != null) {
+            obtainIdle(pool, waiter, conn);
         } else {
-            if(connectionCount.get() <= config.maxConnections) {
-                return makeConnection(endpoint, pool);
+            openAsync(pool, waiter);
+        }
+    }
+
+    //runs on the timer thread
+    private void timeOut(EndpointPool pool, EndpointPool.Waiter waiter) {
+        boolean passSlot = false;
+        pool.lock.lock();
+        try {
+            if(!pool.waiters.remove(waiter)) return; //served just before timing out
+            if(waiter.retry) { //pass the freed slot along
+                waiter.retry = false;
+                passSlot = !wakeWaiter(pool);
+            }
+        } finally {
+            pool.lock.unlock();
+        }
+        if(passSlot) signalCapacity();
+        pool.metrics.timeouts.increment();
+        if(pool.breaker != null) pool.breaker.release(waiter.permit);
+        PoolScheduler.callbacks().execute(waiter.callbacks::onTimeout);
+    }
+
+    /**
+     * Hand the released connection to the first caller waiting for its endpoint, if there is one. Otherwise, if other
+     * endpoints are waiting for room under the pool-wide limit, close it to make room for them. Connections released
+     * after the pool is closed are closed too.
+     */
+    @Override
+    public void onReleased(HttpSocket socket) {
+        EndpointPool pool = pools.get(socket.getEndpoint());
+        if(pool == null) return;
+        pool.lock.lock();
+        try {
+            if(!pool.connections.contains(socket)) return;
+            for(EndpointPool.Waiter waiter : pool.waiters) {
+                if(waiter.socket != null) continue;
+                if(!socket.acquireIfIdle()) return;
+                pool.waiters.remove(waiter); //whoever removes the waiter gets to call it back
+                deliver(pool, waiter, socket);
+                return;
+            }
+            if(!closed && starved.isEmpty()) {
+                pool.idle.addFirst(socket);
+                return;
+            }
+            if(!socket.acquireIfIdle()) return;
+            pool.connections.remove(socket);
+            connectionCount.decrementAndGet();
+            if(!closed) pool.metrics.evictedForRoom.increment();
+            pool.metrics.closed.increment();
+        } finally {
+            pool.lock.unlock();
+        }
+        closeLater(socket);
+        signalCapacity();
+    }
+
+    /**
+     * Forget the closed connection and wake up a caller which can open a new one in its place.
+     */
+    @Override
+    public void onClosed(HttpSocket socket) {
+        EndpointPool pool = pools.get(socket.getEndpoint());
+        if(pool == null) return;
+        boolean woken;
+        pool.lock.lock();
+        try {
+            if(!pool.connections.remove(socket)) return;
+            pool.idle.remove(socket);
+            connectionCount.decrementAndGet();
+            pool.metrics.closed.increment();
+            woken = wakeWaiter(pool);
+        } finally {
+            pool.lock.unlock();
+        }
+        if(!woken) signalCapacity();
+    }
+
+    /**
+     * Record the outcome of the request in the endpoint's circuit breaker, or give its permit back if there's none.
+     */
+    @Override
+    public void onLeaseEnded(HttpSocket socket, boolean failed, long responseNanos) {
+        CircuitBreaker.Permit permit = socket.takePermit();
+        EndpointPool pool = pools.get(socket.getEndpoint());
+        CircuitBreaker breaker = pool == null ? null : pool.breaker;
+        if(breaker == null) return;
+        if(failed || responseNanos >= 0) breaker.record(permit, failed, responseNanos);
+        else breaker.release(permit);
+    }
+
+    /**
+     * Send an idempotent request without a body (e.g. GET), pipelining it behind requests already sent on one of
+     * the connections to the endpoint if there's room (see {@link Config#setPipelineDepth(int)}). Otherwise, or if
+     * pipelining is off, a connection is acquired as usual, waiting for one if needed. If server mishandles
+     * pipelined requests, endpoint falls back to one request per connection at a time.
+     * <br/>
+     * Returned exchange must be closed once the response is read, since responses to requests behind it in the
+     * pipeline can't be read before that.
+     * @param request request to send
+     * @return exchange through which the response is read
+     * @throws InvalidRequestException if request isn't idempotent or has a body
+     * @throws IOException if connecting fails
+     * @throws TimeoutException if waiting for a connection timed out
+     */
+    public HttpPipeline.Exchange sendPipelined(HttpRequest request) throws IOException, TimeoutException {
+        ensureOpen();
+        if(!request.isIdempotent()) throw new InvalidRequestException("Only idempotent requests can be pipelined!");
+        String length = request.getHeaders().getHeader("Content-Length");
+        if((length != null && !length.trim().equals("0")) || request.getHeaders().hasHeader("Transfer-Encoding"))
+            throw new InvalidRequestException("Pipelined requests can't have a body!");
+        Endpoint endpoint = request.getEndpoint();
+        EndpointPool pool = pool(endpoint);
+        int depth = pool.noPipelining ? 1 : config.pipelineDepth;
+        HttpPipeline.Exchange exchange = null;
+        if(depth > 1) {
+            pool.lock.lock();
+            try {
+                for(HttpPipeline pipeline : pool.pipelines)
+                    if((exchange = pipeline.reserve(request, depth)) != null) break;
+            } finally {
+                pool.lock.unlock();
+            }
+        }
+        if(exchange == null) {
+            HttpPipeline pipeline = new HttpPipeline(getConnectionBlocking(endpoint), this);
+            exchange = pipeline.reserve(request, depth);
+            if(depth > 1) {
+                pool.lock.lock();
+                try {
+                    pool.pipelines.add(pipeline);
+                } finally {
+                    pool.lock.unlock();
+                }
+            }
+        }
+        exchange.send();
+        return exchange;
+    }
+
+    /**
+     * Forget the pipeline, so no more requests are added to it.
+     */
+    @Override
+    public void onRetired(HttpPipeline pipeline) {
+        EndpointPool pool = pools.get(pipeline.getEndpoint());
+        if(pool == null) return;
+        pool.lock.lock();
+        try {
+            pool.pipelines.remove(pipeline);
+        } finally {
+            pool.lock.unlock();
+        }
+    }
+
+    /**
+     * Switch the endpoint to one request per connection at a time.
+     */
+    @Override
+    public void onMisbehaved(Endpoint endpoint) {
+        EndpointPool pool = pools.get(endpoint);
+        if(pool != null) pool.noPipelining = true;
+    }
+
+    /**
+     * Send the request again, for a pipeline which couldn't get its response.
+     */
+    @Override
+    public HttpPipeline.Exchange resend(HttpRequest request) throws IOException, TimeoutException {
+        return sendPipelined(request);
+    }
+
+    private EndpointPool pool(Endpoint endpoint) {
+        EndpointPool pool = pools.get(endpoint);
+        if(pool != null) return pool;
+        return pools.computeIfAbsent(endpoint, e -> {
+            EndpointPool created = new EndpointPool(e);
+            CircuitBreaker.Config breakerConfig = config.circuitBreaker;
+            if(breakerConfig != null) created.breaker = new CircuitBreaker(e, breakerConfig, () -> failWaiters(created));
+            return created;
+        });
+    }
+
+    //called without holding any locks when endpoint's breaker opens; nobody waiting for it would get anything useful
+    private void failWaiters(EndpointPool pool) {
+        List<EndpointPool.Waiter> failed = new ArrayList<>();
+        boolean hadSlot = false;
+        pool.lock.lock();
+        try {
+            for(EndpointPool.Waiter waiter; (waiter = pool.waiters.pollFirst()) != null; ) {
+                hadSlot |= waiter.retry;
+                waiter.retry = false;
+                waiter.failure = pool.breaker.openException();
+                if(waiter.callbacks == null) waiter.ready.signal();
+                else failed.add(waiter);
             }
+        } finally {
+            pool.lock.unlock();
+        }
+        if(hadSlot) signalCapacity(); //someone else might be able to use it
+        for(EndpointPool.Waiter waiter : failed) {
+            waiter.timeout.cancel();
+            pool.breaker.release(waiter.permit);
+            PoolScheduler.callbacks().execute(() -> waiter.callbacks.onExceptionThrown(waiter.failure));
+        }
+    }
+
+    //called with pool's lock held, after the waiter is removed from the queue
+    private static void deliver(EndpointPool pool, EndpointPool.Waiter waiter, HttpSocket socket) {
+        pool.metrics.acquired(waiter.since, true);
+        waiter.socket = socket;
+        if(waiter.callbacks == null) {
+            waiter.ready.signal();
+        } else {
+            waiter.timeout.cancel();
+            socket.setPermit(waiter.permit);
+            PoolScheduler.callbacks().execute(() -> waiter.callbacks.onConnectionObtained(socket));
+        }
+    }
+
+    //called with pool's lock held; acquires an idle connection, which has to be validated once the lock is released
+    private HttpSocket takeIdle(EndpointPool pool) {
+        for(HttpSocket conn; (conn = pool.acquireIdle(config.selectionPolicy)) != null; ) {
+            if(!outlivedKeepAlive(conn, System.currentTimeMillis())) return conn;
+            pool.metrics.evictedKeepAlive.increment();
+            closeLater(conn); //onClosed forgets it and lets someone use the slot
         }
         return null;
     }
 
-    private HttpSocket makeConnection(Endpoint endpoint, List<HttpSocket> pool) throws IOException {
-        connectionCount.incrementAndGet();
-        HttpSocket conn = new HttpSocket(endpoint);
+    //connections which idled for a while are checked before they're handed out, since the server might've closed
+    //them in the meantime. Called without holding any locks, because the check blocks briefly for TLS (see
+    //Transport#isStale); stale connections are closed
+    private boolean validate(EndpointPool pool, HttpSocket conn) {
+        if(System.currentTimeMillis() - conn.getLastUsedAt() < config.validateAfterIdle.toMillis() || !conn.isStale())
+            return true;
+        pool.metrics.evictedStale.increment();
+        closeLater(conn);
+        return false;
+    }
+
+    //whether server is about to close the idle connection, going by its Keep-Alive timeout; we give up on it a bit
+    //earlier, so a request doesn't cross paths with server's FIN
+    private boolean outlivedKeepAlive(HttpSocket conn, long now) {
+        long timeout = conn.getKeepAliveTimeout();
+        if(timeout < 0) return false;
+        long margin = Math.min(config.keepAliveMargin.toMillis(), timeout / 2);
+        return now - conn.getLastUsedAt() >= timeout - margin;
+    }
+
+    //called with pool's lock held; tells a waiter which can use a freed slot to try opening a connection
+    private boolean wakeWaiter(EndpointPool pool) {
+        if(!pool.hasRoom(config.maxConnectionsPerEndpoint)) return false;
+        EndpointPool.Waiter waiter = pool.firstIdleWaiter();
+        if(waiter == null) return false;
+        waiter.retry = true;
+        if(waiter.callbacks == null) waiter.ready.signal();
+        else PoolScheduler.executor().execute(() -> retryAsync(pool, waiter));
+        return true;
+    }
+
+    //called without holding any locks, after a slot under the pool-wide limit is freed
+    private void signalCapacity() {
+        EndpointPool pool;
+        while(connectionCount.get() < config.maxConnections && (pool = starved.poll()) != null) {
+            pool.lock.lock();
+            try {
+                pool.starved = false;
+                if(wakeWaiter(pool)) return;
+            } finally {
+                pool.lock.unlock();
+            }
+        }
+    }
+
+    //called with pool's lock held; whether there's a free slot for the endpoint, under both limits
+    private boolean canOpen(EndpointPool pool) {
+        return pool.hasRoom(config.maxConnectionsPerEndpoint) && connectionCount.get() < config.maxConnections;
+    }
+
+    //called with pool's lock held; reserves a slot for a new connection, if limits allow it
+    private boolean reserve(EndpointPool pool) {
+        while(true) {
+            if(tryReserve(pool)) return true;
+            if(!pool.hasRoom(config.maxConnectionsPerEndpoint)) return false;
+            if(evictIdle(pool)) continue; //made room by closing someone else's idle connection
+            if(!pool.starved) {
+                pool.starved = true;
+                starved.add(pool);
+            }
+            return false;
+        }
+    }
+
+    //called with pool's lock held; reserves a slot only if there's one free, without disturbing anyone
+    private boolean tryReserve(EndpointPool pool) {
+        if(!pool.hasRoom(config.maxConnectionsPerEndpoint)) return false;
+        int count;
+        do {
+            count = connectionCount.get();
+            if(count >= config.maxConnections) return false;
+        } while(!connectionCount.compareAndSet(count, count + 1));
+        pool.opening++;
+        return true;
+    }
+
+    //called with pool's lock held; closes an idle connection of another endpoint to make room under the pool-wide
+    //limit. Other endpoints' locks are only tried, so this can't deadlock
+    private boolean evictIdle(EndpointPool except) {
+        for(EndpointPool other : pools.values()) {
+            if(other == except || !other.lock.tryLock()) continue;
+            HttpSocket idle;
+            try {
+                idle = other.acquireOldestIdle();
+                if(idle == null) continue;
+                other.connections.remove(idle);
+                connectionCount.decrementAndGet();
+                other.metrics.evictedForRoom.increment();
+                other.metrics.closed.increment();
+            } finally {
+                other.lock.unlock();
+            }
+            closeLater(idle);
+            return true;
+        }
+        return false;
+    }
+
+    //opens a connection in the reserved slot; called without holding any locks. Failing to connect counts as a failed
+    //call of whoever's permit it is
+    private HttpSocket open(EndpointPool pool, CircuitBreaker.Permit permit) throws IOException {
+        HttpSocket conn;
+        try {
+            conn = new HttpSocket(pool.endpoint, config.transportMode, config.tlsConfig, config.socketOptions);
+        } catch (IOException | RuntimeException e) {
+            pool.metrics.createFailures.increment();
+            CircuitBreaker breaker = pool.breaker;
+            if(breaker != null) {
+                if(e instanceof IOException) breaker.record(permit, true, -1);
+                else breaker.release(permit);
+            }
+            unreserve(pool);
+            throw e;
+        }
+        pool.metrics.created.increment();
         conn.acquireIfIdle();
-        if(pool != null) pool.add(conn);
+        conn.setOwner(this);
+        conn.setMaxDrain(config.maxDrainBytes);
+        pool.lock.lock();
+        try {
+            pool.opening--;
+            pool.connections.add(conn);
+        } finally {
+            pool.lock.unlock();
+        }
+        scheduleReaper();
         return conn;
     }
 
-    private void cleanupConnections() throws IOException {
-        int connCount = 0;
-        for (List<HttpSocket> conns : connections.values()) {
-            for (Iterator<HttpSocket> it = conns.iterator(); it.hasNext(); ) {
-                HttpSocket conn = it.next();
-                if (conn.isClosed()) {
-                    it.remove();
-                } else if (conn.getIdlingTime().compareTo(config.aliveTime) > 0
-                        || conn.getAge().compareTo(config.maxAge) > 0) {
-                    conn.close();
-                    it.remove();
+    //gives back a slot reserved for a connection which won't be opened after all
+    private void unreserve(EndpointPool pool) {
+        connectionCount.decrementAndGet();
+        boolean woken;
+        pool.lock.lock();
+        try {
+            pool.opening--;
+            woken = wakeWaiter(pool);
+        } finally {
+            pool.lock.unlock();
+        }
+        if(!woken) signalCapacity();
+    }
+
+    //closes a connection which is already removed from the pool, on the executor (closing TLS can block)
+    private static void closeLater(HttpSocket socket) {
+        PoolScheduler.executor().execute(() -> {
+            try {
+                socket.close();
+            } catch (IOException ignored) { //we're done with it anyway
+            }
+        });
+    }
+
+    /**
+     * Open connections to the endpoint in background, so requests don't have to wait for TCP and TLS handshakes.
+     * Connections are opened until the endpoint has the given number of them (both idle and in use), as long as
+     * limits allow it; connections to other endpoints aren't closed to make room. Opened connections are handed to
+     * waiting callers, or kept idle until someone needs them (or aliveTime passes).
+     * @param endpoint endpoint to connect to
+     * @param connections number of connections endpoint should have
+     * @return future completed with the number of opened connections once all of them are opened, or exceptionally
+     *         if none could be opened because of an error
+     */
+    public CompletableFuture<Integer> prewarm(Endpoint endpoint, int connections) {
+        ensureOpen();
+        EndpointPool pool = pool(endpoint);
+        CircuitBreaker breaker = pool.breaker;
+        if(breaker != null && breaker.getState() != CircuitBreaker.State.CLOSED)
+            return CompletableFuture.failedFuture(breaker.openException());
+        int slots = 0;
+        pool.lock.lock();
+        try {
+            while(pool.connections.size() + pool.opening < connections && tryReserve(pool)) slots++;
+        } finally {
+            pool.lock.unlock();
+        }
+        return openIdle(pool, slots);
+    }
+
+    //opens connections in reserved slots, on the executor, and releases them to the pool
+    private CompletableFuture<Integer> openIdle(EndpointPool pool, int slots) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        if(slots == 0) {
+            result.complete(0);
+            return result;
+        }
+        AtomicInteger remaining = new AtomicInteger(slots), opened = new AtomicInteger(0);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        for(int i=0; i<slots; i++) {
+            PoolScheduler.executor().execute(() -> {
+                try {
+                    if(closed) unreserve(pool); //pool was closed before we got to it
+                    else {
+                        open(pool, null).release();
+                        opened.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    if(remaining.decrementAndGet() == 0) {
+                        if(opened.get() == 0 && failure.get() != null) result.completeExceptionally(failure.get());
+                        else result.complete(opened.get());
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    //called by the reaper; opens connections so the endpoint has at least minIdlePerEndpoint idle ones
+    private void topUp(EndpointPool pool) {
+        CircuitBreaker breaker = pool.breaker;
+        if(breaker != null && breaker.getState() != CircuitBreaker.State.CLOSED) return;
+        int slots = 0;
+        pool.lock.lock();
+        try {
+            if(!pool.waiters.isEmpty()) return; //they'll get the connections first
+            while(pool.idle.size() + pool.opening + slots < config.minIdlePerEndpoint && tryReserve(pool)) slots++;
+        } finally {
+            pool.lock.unlock();
+        }
+        openIdle(pool, slots);
+    }
+
+    private void scheduleReaper() {
+        if(closed || reaperScheduled.get() || !reaperScheduled.compareAndSet(false, true)) return;
+        //timer thread only hands the work over; probing connections can take a while
+        reaper = PoolScheduler.timer().schedule(() -> PoolScheduler.executor().execute(this::reap),
+                config.reapInterval.toNanos(), TimeUnit.NANOSECONDS);
+        if(closed) reaper.cancel(); //close() might've missed it
+    }
+
+    //evicts idle connections which expired or went stale; reschedules itself while there are connections, until
+    //pool is closed
+    private void reap() {
+        if(closed) return;
+        try {
+            for(EndpointPool pool : pools.values()) {
+                reap(pool);
+                if(config.minIdlePerEndpoint > 0) topUp(pool);
+            }
+        } finally {
+            reaperScheduled.set(false);
+            if(connectionCount.get() > 0 || config.minIdlePerEndpoint > 0) scheduleReaper();
+        }
+    }
+
+    /**
+     * Close the pool: background work (reaping, keeping minIdlePerEndpoint connections open) stops, idle connections
+     * are closed, and callers waiting for a connection are failed. Connections which are in use are closed once
+     * they're released, and so are those still being opened (e.g. by {@link #prewarm(Endpoint, int)}) once they're
+     * done. Pool can't be used after closing; trying to get a connection throws {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        if(closed) return;
+        closed = true;
+        WheelTimer.Timeout reaper = this.reaper;
+        if(reaper != null) reaper.cancel();
+        for(EndpointPool pool : pools.values()) {
+            List<HttpSocket> idle = new ArrayList<>();
+            List<EndpointPool.Waiter> failed = new ArrayList<>();
+            pool.lock.lock();
+            try {
+                for(HttpSocket conn; (conn = pool.acquireOldestIdle()) != null; ) {
+                    pool.connections.remove(conn);
+                    idle.add(conn);
+                }
+                connectionCount.addAndGet(-idle.size());
+                pool.metrics.closed.add(idle.size());
+                for(EndpointPool.Waiter waiter; (waiter = pool.waiters.pollFirst()) != null; ) {
+                    waiter.retry = false;
+                    waiter.failure = closedException();
+                    if(waiter.callbacks == null) waiter.ready.signal();
+                    else failed.add(waiter);
+                }
+            } finally {
+                pool.lock.unlock();
+            }
+            for(HttpSocket conn : idle) closeLater(conn);
+            for(EndpointPool.Waiter waiter : failed) {
+                waiter.timeout.cancel();
+                if(pool.breaker != null) pool.breaker.release(waiter.permit);
+                PoolScheduler.callbacks().execute(() -> waiter.callbacks.onExceptionThrown(waiter.failure));
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if(closed) throw new IllegalStateException("Connection pool is closed!");
+    }
+
+    private static IOException closedException() {
+        return new IOException("Connection pool is closed");
+    }
+
+    private void reap(EndpointPool pool) {
+        List<HttpSocket> expired = new ArrayList<>(), toCheck = new ArrayList<>();
+        pool.lock.lock();
+        try {
+            pool.takeIdleForReaping(config.aliveTime, config.maxAge, config.minIdlePerEndpoint, expired, toCheck);
+        } finally {
+            pool.lock.unlock();
+        }
+        for(HttpSocket conn : expired) {
+            if(conn.getAge().compareTo(config.maxAge) > 0) pool.metrics.evictedMaxAge.increment();
+            else pool.metrics.evictedIdle.increment();
+        }
+        List<HttpSocket> healthy = new ArrayList<>(toCheck.size()), late = new ArrayList<>();
+        for(HttpSocket conn : toCheck) {
+            if(outlivedKeepAlive(conn, System.currentTimeMillis())) {
+                pool.metrics.evictedKeepAlive.increment();
+                expired.add(conn);
+            } else if(conn.isStale()) { //peer closed it, or sent something we can't make sense of
+                pool.metrics.evictedStale.increment();
+                expired.add(conn);
+            } else {
+                healthy.add(conn);
+            }
+        }
+        if(expired.isEmpty() && healthy.isEmpty()) return;
+
+        int woken = 0;
+        pool.lock.lock();
+        try {
+            //put them back behind anything released in the meantime, keeping their order; waiters come first
+            for(int i=healthy.size()-1; i>=0; i--) {
+                HttpSocket conn = healthy.get(i);
+                conn.unclaim();
+                if(closed) { //pool was closed while we were checking them
+                    if(conn.acquireIfIdle()) {
+                        pool.connections.remove(conn);
+                        late.add(conn);
+                    }
+                    continue;
+                }
+                EndpointPool.Waiter waiter = pool.waiters.peekFirst();
+                if(waiter != null && waiter.socket == null && conn.acquireIfIdle()) {
+                    pool.waiters.pollFirst();
+                    deliver(pool, waiter, conn);
                 } else {
-                    connCount++;
+                    pool.idle.addLast(conn);
                 }
             }
+            for(HttpSocket conn : expired) pool.connections.remove(conn);
+            expired.addAll(late);
+            connectionCount.addAndGet(-expired.size());
+            pool.metrics.closed.add(expired.size());
+            while(woken < expired.size() && wakeWaiter(pool)) woken++;
+        } finally {
+            pool.lock.unlock();
+        }
+        for(int i=woken; i<expired.size(); i++) signalCapacity();
+        for(HttpSocket conn : expired) closeLater(conn);
+    }
+
+    /**
+     * @return stats of the whole pool, i.e. summed over all endpoints
+     */
+    public PoolStats getStats() {
+        List<PoolStats> all = new ArrayList<>(pools.size());
+        for(EndpointPool pool : pools.values()) all.add(stats(pool));
+        return PoolStats.sum(all);
+    }
+
+    /**
+     * @param endpoint endpoint whose stats are returned
+     * @return stats of connections to the endpoint, or null if pool has never been asked for it
+     */
+    public PoolStats getStats(Endpoint endpoint) {
+        EndpointPool pool = pools.get(endpoint);
+        return pool == null ? null : stats(pool);
+    }
+
+    /**
+     * @return stats of each endpoint pool has been asked for
+     */
+    public Map<Endpoint, PoolStats> getEndpointStats() {
+        Map<Endpoint, PoolStats> all = new HashMap<>();
+        for(EndpointPool pool : pools.values()) all.put(pool.endpoint, stats(pool));
+        return all;
+    }
+
+    private static PoolStats stats(EndpointPool pool) {
+        pool.lock.lock();
+        try {
+            return pool.stats();
+        } finally {
+            pool.lock.unlock();
         }
-        connectionCount.set(connCount);
+    }
+
+    /**
+     * Register this pool's stats with the platform MBean server, as a {@link PoolStatsMXBean} named
+     * rs.lukaj.httpclient:type=ConnectionPool,name=&lt;name&gt;.
+     * @param name name which identifies this pool among the registered ones
+     * @return name under which the bean is registered; pass it to
+     *         {@link MBeanServer#unregisterMBean(ObjectName)} once the pool isn't used anymore
+     * @throws JMException if name is malformed or already taken
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("rs.lukaj.httpclient:type=ConnectionPool,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new StatsBean(), objectName);
+        return objectName;
+    }
+
+    private class StatsBean implements PoolStatsMXBean {
+        @Override public int getActiveConnections() { return getStats().active; }
+        @Override public int getIdleConnections() { return getStats().idle; }
+        @Override public int getOpeningConnections() { return getStats().opening; }
+        @Override public int getWaitingCallers() { return getStats().waiting; }
+        @Override public long getAcquiredConnections() { return getStats().acquired; }
+        @Override public long getReusedConnections() { return getStats().reused; }
+        @Override public double getReuseRatio() { return getStats().getReuseRatio(); }
+        @Override public long getTimeouts() { return getStats().timeouts; }
+        @Override public long getCreatedConnections() { return getStats().created; }
+        @Override public long getCreateFailures() { return getStats().createFailures; }
+        @Override public long getClosedConnections() { return getStats().closed; }
+        @Override public long getEvictedConnections() { return getStats().getEvicted(); }
+        @Override public long[] getWaitBucketsMillis() { return PoolStats.WAIT_BUCKETS_MILLIS.clone(); }
+        @Override public long[] getWaitHistogram() { return getStats().getWaitHistogram(); }
+        @Override public long getWaitMedianMillis() { return getStats().getWaitPercentileMillis(50); }
+        @Override public long getWait99thPercentileMillis() { return getStats().getWaitPercentileMillis(99); }
     }
 
 
@@ -175,7 +987,17 @@ public class ConfigurableConnectionPool implements ConnectionPool {
         private Duration aliveTime = Duration.ofSeconds(60);
         private Duration maxWait = Duration.ofSeconds(2);
         private Duration maxAge = Duration.ofHours(2);
-        private Duration waitTime = Duration.ofMillis(100);
+        private Duration reapInterval = Duration.ofSeconds(5);
+        private int minIdlePerEndpoint = 0;
+        private TransportMode transportMode = TransportMode.BLOCKING;
+        private SelectionPolicy selectionPolicy = SelectionPolicy.LIFO;
+        private CircuitBreaker.Config circuitBreaker;
+        private long maxDrainBytes = HttpSocket.DEFAULT_MAX_DRAIN;
+        private Duration validateAfterIdle = Duration.ofSeconds(2);
+        private Duration keepAliveMargin = Duration.ofSeconds(1);
+        private int pipelineDepth = 1;
+        private TlsConfig tlsConfig = TlsConfig.getDefault();
+        private SocketOptions socketOptions = SocketOptions.getDefault();
 
         public Config() {
         }
@@ -212,7 +1034,7 @@ public class ConfigurableConnectionPool implements ConnectionPool {
 
         /**
          * Sets maximum time connection can be alive and idling without being closed. If connection is idling for more
-         * than aliveTime, it will be closed on the next occasion and won't be used again.
+         * than aliveTime, it will be closed on the next background check ({@link #setReapInterval(Duration)}).
          * @param aliveTime maximum idling time
          */
         public void setAliveTime(Duration aliveTime) {
@@ -232,7 +1054,7 @@ public class ConfigurableConnectionPool implements ConnectionPool {
 
         /**
          * Sets maximum connection age. Age is calculated as a period between the time socket was opened and now. If
-         * connection is older than maxAge, it will be closed on the next occasion and won't be used again. Connections
+         * connection is older than maxAge, it will be closed on the next background check. Connections
          * which are in use won't be closed regardless of age.
          * @param maxAge maximum age connection can live for
          */
@@ -242,15 +1064,133 @@ public class ConfigurableConnectionPool implements ConnectionPool {
         }
 
         /**
-         * Sets duration which user spends sleeping while waiting for connection. When requesting connection, if none
-         * are available, instead of entering a tight loop, user sleeps and periodically checks if any connection has
-         * freed up. This allows multiple requests to wait for connection (connection access is synchronized, sleeping
-         * isn't). This number shouldn't be too high, but should be noticeably larger than 0.
-         * @param waitTime how long the caller sleeps before checking if connection is available
+         * Sets how many idle connections should be kept open to each endpoint the pool has connected to (or was
+         * {@link #prewarm(Endpoint, int) prewarmed} for). Missing connections are opened in background, on each
+         * {@link #setReapInterval(Duration) background check}, as long as limits allow it; these don't get closed for
+         * idling too long. This keeps handshakes off the request path after periods of low traffic.
+         * @param minIdlePerEndpoint minimum number of idle connections per endpoint; 0 turns this off
+         */
+        public void setMinIdlePerEndpoint(int minIdlePerEndpoint) {
+            if(minIdlePerEndpoint < 0) throw new InvalidConfigException("minIdlePerEndpoint can't be negative!");
+            this.minIdlePerEndpoint = minIdlePerEndpoint;
+        }
+
+        /**
+         * Sets how often idle connections are checked in background. Connections which idled for longer than
+         * aliveTime, are older than maxAge, or were closed by the server are closed on the next check, so they can
+         * stay in the pool for up to this long after they should've been gone.
+         * @param reapInterval time between two checks
          */
+        public void setReapInterval(Duration reapInterval) {
+            if(reapInterval.isNegative() || reapInterval.isZero()) throw new InvalidConfigException("reapInterval must be positive!");
+            this.reapInterval = reapInterval;
+        }
+
+        /**
+         * Used to set how long callers sleep between checks whether a connection has freed up. Waiting callers are
+         * now notified as soon as that happens, so this has no effect.
+         * @param waitTime ignored
+         * @deprecated callers no longer poll for connections
+         */
+        @Deprecated
         public void setWaitTime(Duration waitTime) {
             if(waitTime.isNegative() || waitTime.isZero()) throw new InvalidConfigException("waitTime must be positive!");
-            this.waitTime = waitTime;
+        }
+
+        /**
+         * Sets which idle connection is handed out when an endpoint has several. The default, {@link SelectionPolicy#LIFO},
+         * lets connections which aren't needed idle out, so the pool shrinks after bursts of traffic.
+         * @param selectionPolicy policy for choosing among idle connections
+         */
+        public void setSelectionPolicy(SelectionPolicy selectionPolicy) {
+            if(selectionPolicy == null) throw new InvalidConfigException("selectionPolicy can't be null!");
+            this.selectionPolicy = selectionPolicy;
+        }
+
+        /**
+         * Gives each endpoint a {@link CircuitBreaker} with the given thresholds, so requests to an endpoint which keeps
+         * failing fail right away instead of tying up threads. Applies to endpoints the pool hasn't seen yet.
+         * @param circuitBreaker thresholds for breakers, or null to turn them off (the default)
+         */
+        public void setCircuitBreaker(CircuitBreaker.Config circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        /**
+         * Sets how much of a response body left unread is thrown away when a connection is released, so the
+         * connection can be reused. If more is left, connection is closed instead, since opening a new one is
+         * cheaper than reading a large body nobody wants.
+         * @param maxDrainBytes maximum number of bytes to drain; 0 closes every connection released with body unread
+         * @see HttpSocket#setMaxDrain(long)
+         */
+        public void setMaxDrainBytes(long maxDrainBytes) {
+            if(maxDrainBytes < 0) throw new InvalidConfigException("maxDrainBytes can't be negative!");
+            this.maxDrainBytes = maxDrainBytes;
+        }
+
+        /**
+         * Sets how long a connection has to idle before it's checked for staleness (i.e. whether the server has
+         * closed it) when it's handed out. The check is cheap, but it's a syscall, so connections which were just
+         * released skip it. Stale connections are also found by the reaper, but only every reapInterval.
+         * @param validateAfterIdle idling time after which connections are checked; zero checks every connection
+         */
+        public void setValidateAfterIdle(Duration validateAfterIdle) {
+            if(validateAfterIdle.isNegative()) throw new InvalidConfigException("validateAfterIdle can't be negative!");
+            this.validateAfterIdle = validateAfterIdle;
+        }
+
+        /**
+         * Sets how long before the server's Keep-Alive timeout (e.g. "Keep-Alive: timeout=5") idle connections are
+         * closed, so requests aren't sent on connections the server is closing at the same time. Margin is at most
+         * half of the timeout. Connections whose server didn't announce a timeout go by aliveTime only.
+         * @param keepAliveMargin how much earlier than the server idle connections are closed
+         */
+        public void setKeepAliveMargin(Duration keepAliveMargin) {
+            if(keepAliveMargin.isNegative()) throw new InvalidConfigException("keepAliveMargin can't be negative!");
+            this.keepAliveMargin = keepAliveMargin;
+        }
+
+        /**
+         * Sets how many requests sent using {@link ConfigurableConnectionPool#sendPipelined(HttpRequest)} can be in
+         * flight on a single connection. Pipelining saves a round trip per request on links with high latency, but
+         * a slow response holds up all requests behind it, and some servers and proxies handle it badly (the pool
+         * falls back to one request at a time for endpoints which do). Off by default.
+         * @param pipelineDepth maximum number of requests in flight per connection; 1 turns pipelining off
+         */
+        public void setPipelineDepth(int pipelineDepth) {
+            if(pipelineDepth < 1) throw new InvalidConfigException("pipelineDepth must be positive!");
+            this.pipelineDepth = pipelineDepth;
+        }
+
+        /**
+         * Sets how new connections do their I/O. Existing connections keep the mode they were opened with.
+         * {@link TransportMode#NIO} lets a small number of event loop threads service all idle and waiting
+         * connections, which pays off with many concurrent keep-alive connections.
+         * @param transportMode transport used for new connections
+         */
+        public void setTransportMode(TransportMode transportMode) {
+            if(transportMode == null) throw new InvalidConfigException("transportMode can't be null!");
+            this.transportMode = transportMode;
+        }
+
+        /**
+         * Sets TLS config used for new HTTPS connections, unless endpoint has its own
+         * ({@link Endpoint#withTlsConfig(TlsConfig)}).
+         * @param tlsConfig TLS config for new connections
+         */
+        public void setTlsConfig(TlsConfig tlsConfig) {
+            if(tlsConfig == null) throw new InvalidConfigException("tlsConfig can't be null!");
+            this.tlsConfig = tlsConfig;
+        }
+
+        /**
+         * Sets options (TCP_NODELAY, buffer sizes, timeouts...) applied to new connections, unless endpoint has its
+         * own ({@link Endpoint#withSocketOptions(SocketOptions)}).
+         * @param socketOptions socket options for new connections
+         */
+        public void setSocketOptions(SocketOptions socketOptions) {
+            if(socketOptions == null) throw new InvalidConfigException("socketOptions can't be null!");
+            this.socketOptions = socketOptions;
         }
     }
 
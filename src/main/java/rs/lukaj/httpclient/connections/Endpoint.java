@@ -4,16 +4,25 @@ import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
 /**
- * Endpoint to which connections are connected. Consists of host and port.
+ * Endpoint to which connections are connected. Consists of host and port. Host is resolved to all of its addresses
+ * (both IPv4 and IPv6), which are raced when connecting. Endpoints are immutable, so they can be shared (e.g. by
+ * {@link EndpointCache}); endpoints with their own TLS config or socket options are derived from plain ones using
+ * {@link #withTlsConfig(TlsConfig)} and {@link #withSocketOptions(SocketOptions)}.
  */
 public class Endpoint {
-    private final InetAddress address;
+    private final List<InetAddress> addresses;
     private final String host;
     private final short port;
     private final boolean https;
+    private final TlsConfig tlsConfig;
+    private final SocketOptions socketOptions;
 
     /**
      * Create a new endpoint
@@ -24,10 +33,27 @@ public class Endpoint {
      */
     public Endpoint(String host, short port, boolean isHttps) throws UnknownHostException {
         if(host == null) throw new NullPointerException("Host can't be null!");
-        this.address = InetAddress.getByName(host);
+        this.addresses = Collections.unmodifiableList(Arrays.asList(InetAddress.getAllByName(host)));
         this.port = port;
         this.host = host;
         this.https = isHttps;
+        this.tlsConfig = null;
+        this.socketOptions = null;
+    }
+
+    //for endpoints which are already resolved, e.g. by EndpointCache
+    Endpoint(String host, short port, boolean isHttps, List<InetAddress> addresses) {
+        this(host, port, isHttps, Collections.unmodifiableList(addresses), null, null);
+    }
+
+    private Endpoint(String host, short port, boolean isHttps, List<InetAddress> addresses, TlsConfig tlsConfig,
+                     SocketOptions socketOptions) {
+        this.addresses = addresses;
+        this.port = port;
+        this.host = host;
+        this.https = isHttps;
+        this.tlsConfig = tlsConfig;
+        this.socketOptions = socketOptions;
     }
 
     /**
@@ -50,18 +76,34 @@ public class Endpoint {
      * @throws MalformedURLException if address is malformed (e.g. protocol is neither http or https and no host is provided)
      */
     public static Endpoint fromUrl(URL url) throws UnknownHostException, MalformedURLException {
+        return new Endpoint(url.getHost(), (short)portOf(url), url.getProtocol().equals("https"));
+    }
+
+    //port of the url, or the default one for its protocol if url doesn't have it
+    static int portOf(URL url) throws MalformedURLException {
         int port = url.getPort();
         if(port == -1) {
             if(url.getProtocol().equals("http")) port = 80;
             else if(url.getProtocol().equals("https")) port = 443;
             else throw new MalformedURLException("Unknown protocol: " + url.getProtocol());
         }
-        return new Endpoint(url.getHost(), (short)port, url.getProtocol().equals("https"));
+        return port;
     }
 
+    /**
+     * @return first resolved address, i.e. the one resolver prefers
+     */
     public InetAddress getAddress() {
-        return address;
+        return addresses.get(0);
     }
+
+    /**
+     * @return all resolved addresses, in resolver's order
+     */
+    public List<InetAddress> getAddresses() {
+        return addresses;
+    }
+
     public short getPort() {
         return port;
     }
@@ -72,15 +114,58 @@ public class Endpoint {
         return https;
     }
 
+    /**
+     * @return TLS config used for connections to this endpoint, or null if pool's config is used
+     */
+    public TlsConfig getTlsConfig() {
+        return tlsConfig;
+    }
+
+    /**
+     * Get the same endpoint, with its own TLS config for new connections, overriding the one set on the pool. Has no
+     * effect on plain HTTP endpoints. Since config is a part of the endpoint, pool keeps connections made with it
+     * apart from the others.
+     * @param tlsConfig TLS config, or null to use pool's config
+     * @return endpoint with the given config; this one isn't changed
+     */
+    public Endpoint withTlsConfig(TlsConfig tlsConfig) {
+        return new Endpoint(host, port, https, addresses, tlsConfig, socketOptions);
+    }
+
+    /**
+     * @return socket options used for connections to this endpoint, or null if pool's options are used
+     */
+    public SocketOptions getSocketOptions() {
+        return socketOptions;
+    }
+
+    /**
+     * Get the same endpoint, with its own socket options for new connections, overriding the ones set on the pool.
+     * Since options are a part of the endpoint, pool keeps connections made with them apart from the others.
+     * @param socketOptions socket options, or null to use pool's options
+     * @return endpoint with the given options; this one isn't changed
+     */
+    public Endpoint withSocketOptions(SocketOptions socketOptions) {
+        return new Endpoint(host, port, https, addresses, tlsConfig, socketOptions);
+    }
+
+    /**
+     * Endpoints are equal if they have the same host (ignoring case), port and protocol, and the same TLS config and
+     * socket options (if any). Host names are compared rather than addresses, since one host can have many
+     * addresses, and many hosts can share one. Config and options are compared by identity, since they can change.
+     * @inheritDoc
+     */
     @Override
     public boolean equals(Object obj) {
         if(!(obj instanceof Endpoint)) return false;
         Endpoint other = (Endpoint)obj;
-        return port == other.port && address.equals(other.address);
+        return port == other.port && https == other.https && host.equalsIgnoreCase(other.host)
+                && tlsConfig == other.tlsConfig && socketOptions == other.socketOptions;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(address, port);
+        return Objects.hash(host.toLowerCase(Locale.ROOT), port, https, System.identityHashCode(tlsConfig),
+                System.identityHashCode(socketOptions));
     }
 }
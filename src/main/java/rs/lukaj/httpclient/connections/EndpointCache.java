@@ -0,0 +1,242 @@
+package rs.lukaj.httpclient.connections;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of {@link Endpoint}s, keyed by scheme, host and port, so requests don't parse URLs and resolve hosts over and
+ * over. Resolved endpoints are kept for the TTL, and failed lookups for the negative TTL. Once an endpoint is past
+ * {@link #REFRESH_AHEAD} of its TTL, it's re-resolved in background while the old one is still being served, so hosts
+ * which are used regularly never block the request path on a lookup. Least recently used entries are dropped once
+ * the cache is full.
+ * <br/>
+ * Note that the JVM keeps its own cache of lookups (see networkaddress.cache.ttl), so TTLs shorter than that don't
+ * make lookups any fresher.
+ */
+public class EndpointCache {
+    public static final Duration DEFAULT_TTL = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofSeconds(10);
+    public static final int DEFAULT_MAX_SIZE = 1024;
+    /**
+     * Fraction of TTL after which endpoint is refreshed in background.
+     */
+    public static final double REFRESH_AHEAD = 0.75;
+    private static final EndpointCache DEFAULT = new EndpointCache();
+
+    private final Map<String, Cached> entries;
+    private volatile Duration ttl = DEFAULT_TTL;
+    private volatile Duration negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    private static class Cached {
+        final Endpoint endpoint; //null if lookup failed
+        final String failure;
+        final long expiresAt;
+        volatile long refreshAt;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        Cached(Endpoint endpoint, String failure, long expiresAt, long refreshAt) {
+            this.endpoint = endpoint;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    /**
+     * Create cache with 30s TTL, 10s negative TTL and room for 1024 endpoints.
+     */
+    public EndpointCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize maximum number of cached endpoints
+     */
+    public EndpointCache(int maxSize) {
+        if(maxSize < 1) throw new InvalidConfigException("maxSize must be positive!");
+        this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) { //access order, i.e. LRU
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return cache used by {@link HttpRequest}
+     */
+    public static EndpointCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Set for how long resolved endpoints are kept.
+     * @param ttl time to live of successful lookups
+     */
+    public void setTtl(Duration ttl) {
+        if(ttl.isNegative() || ttl.isZero()) throw new InvalidConfigException("ttl must be positive!");
+        this.ttl = ttl;
+    }
+
+    /**
+     * Set for how long failed lookups are remembered. Until it passes, asking for the same host fails right away.
+     * @param negativeTtl time to live of failed lookups; zero means they aren't cached
+     */
+    public void setNegativeTtl(Duration negativeTtl) {
+        if(negativeTtl.isNegative()) throw new InvalidConfigException("negativeTtl can't be negative!");
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * Get endpoint for the URL, resolving it only if it isn't cached.
+     * @param urlAddress URL to which endpoint should point
+     * @return endpoint for the given address
+     * @throws UnknownHostException if host cannot be resolved (now, or when it was last tried within negative TTL)
+     * @throws MalformedURLException if address is malformed
+     */
+    public Endpoint get(String urlAddress) throws UnknownHostException, MalformedURLException {
+        return get(new URL(urlAddress));
+    }
+
+    /**
+     * Get endpoint for the URL, resolving it only if it isn't cached.
+     * @param url URL to which endpoint should point
+     * @return endpoint for the given address
+     * @throws UnknownHostException if host cannot be resolved (now, or when it was last tried within negative TTL)
+     * @throws MalformedURLException if protocol is neither http or https and no port is provided
+     */
+    public Endpoint get(URL url) throws UnknownHostException, MalformedURLException {
+        int port = Endpoint.portOf(url);
+        boolean https = url.getProtocol().equals("https");
+        String host = url.getHost();
+        String key = (https ? "https://" : "http://") + host.toLowerCase(Locale.ROOT) + ":" + port;
+
+        long now = System.nanoTime();
+        Cached entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if(entry != null && entry.expiresAt - now > 0) {
+            if(entry.endpoint == null) {
+                negativeHits.increment();
+                throw new UnknownHostException(entry.failure);
+            }
+            hits.increment();
+            if(now - entry.refreshAt >= 0 && entry.refreshing.compareAndSet(false, true))
+                PoolScheduler.executor().execute(() -> refresh(key, entry, host, port, https));
+            return entry.endpoint;
+        }
+
+        misses.increment();
+        Endpoint endpoint;
+        try {
+            endpoint = resolve(host, port, https);
+        } catch (UnknownHostException e) {
+            if(!negativeTtl.isZero()) put(key, new Cached(null, e.getMessage(), now + negativeTtl.toNanos(), 0));
+            throw e;
+        }
+        put(key, positive(endpoint, now));
+        return endpoint;
+    }
+
+    //runs in background; if lookup fails, old endpoint is kept until it expires, and refresh is retried a bit later
+    private void refresh(String key, Cached entry, String host, int port, boolean https) {
+        long now = System.nanoTime();
+        try {
+            put(key, positive(resolve(host, port, https), now));
+            refreshes.increment();
+        } catch (UnknownHostException e) {
+            entry.refreshAt = now + Math.max(negativeTtl.toNanos(), Duration.ofSeconds(1).toNanos());
+            entry.refreshing.set(false);
+        }
+    }
+
+    private Cached positive(Endpoint endpoint, long now) {
+        long ttl = this.ttl.toNanos();
+        return new Cached(endpoint, null, now + ttl, now + (long)(ttl * REFRESH_AHEAD));
+    }
+
+    private void put(String key, Cached entry) {
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    private static Endpoint resolve(String host, int port, boolean https) throws UnknownHostException {
+        List<InetAddress> addresses = Arrays.asList(InetAddress.getAllByName(host));
+        return new Endpoint(host, (short)port, https, addresses);
+    }
+
+    /**
+     * Drop all cached endpoints.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return snapshot of cache counters
+     */
+    public Stats getStats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new Stats(hits.sum(), misses.sum(), negativeHits.sum(), refreshes.sum(), size);
+    }
+
+    /**
+     * Counters of an {@link EndpointCache}, taken at a single moment.
+     */
+    public static class Stats {
+        /** Number of lookups served from the cache */
+        public final long hits;
+        /** Number of lookups which had to resolve the host on the caller's thread */
+        public final long misses;
+        /** Number of lookups which failed right away because the host recently failed to resolve */
+        public final long negativeHits;
+        /** Number of background refreshes which succeeded */
+        public final long refreshes;
+        /** Number of cached entries, both successful and failed */
+        public final int size;
+
+        private Stats(long hits, long misses, long negativeHits, long refreshes, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.negativeHits = negativeHits;
+            this.refreshes = refreshes;
+            this.size = size;
+        }
+
+        /**
+         * @return fraction of lookups served from the cache (including negative hits), between 0 and 1
+         */
+        public double getHitRatio() {
+            long total = hits + misses + negativeHits;
+            return total == 0 ? 0 : (double)(hits + negativeHits) / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", negativeHits=" + negativeHits + ", refreshes=" + refreshes
+                    + ", size=" + size;
+        }
+    }
+}
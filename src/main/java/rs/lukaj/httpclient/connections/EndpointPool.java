@@ -0,0 +1,178 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connections and waiting callers of a single endpoint in a {@link ConfigurableConnectionPool}. Each endpoint has
+ * its own lock, so acquiring a connection to one host never waits for anything happening with another. Everything
+ * here, except the lock itself, is guarded by the lock.
+ */
+final class EndpointPool {
+    final Endpoint endpoint;
+    final ReentrantLock lock = new ReentrantLock();
+    final Set<HttpSocket> connections = new HashSet<>();
+    /**
+     * Idle connections, ordered by the time they were released: the most recent one is first.
+     */
+    final Deque<HttpSocket> idle = new ArrayDeque<>();
+    /**
+     * Callers waiting for a connection, in order of arrival.
+     */
+    final Deque<Waiter> waiters = new ArrayDeque<>();
+    /**
+     * Connections which are being opened. They count against the limit, but aren't in the list yet.
+     */
+    int opening;
+    /**
+     * Whether this endpoint is queued in the pool as waiting for a free slot under the pool-wide limit.
+     */
+    boolean starved;
+    final PoolMetrics metrics = new PoolMetrics();
+    /**
+     * Breaker of this endpoint, or null if pool doesn't use them.
+     */
+    volatile CircuitBreaker breaker;
+    /**
+     * Pipelines which can take more requests (see {@link ConfigurableConnectionPool#sendPipelined(HttpRequest)}).
+     */
+    final List<HttpPipeline> pipelines = new ArrayList<>();
+    /**
+     * Set once server breaks pipelining; requests then go one at a time.
+     */
+    volatile boolean noPipelining;
+
+    static class Waiter {
+        final Condition ready; //signalled for blocking callers
+        final ConnectionPool.Callbacks callbacks; //called for async callers
+        WheelTimer.Timeout timeout; //only for async callers
+        HttpSocket socket; //set when a released connection is handed to this waiter
+        boolean retry; //set when a slot is freed, so waiter should try opening a new connection
+        boolean passSlot; //set if waiter left without using the slot it was told about, and nobody here can
+        IOException failure; //set when waiter is failed without getting a connection (e.g. circuit breaker opened)
+        CircuitBreaker.Permit permit; //only for async callers; goes to the connection they get, or back to the breaker
+        final long since = System.nanoTime(); //when waiter started waiting
+
+        Waiter(Condition ready) {
+            this.ready = ready;
+            this.callbacks = null;
+        }
+
+        Waiter(ConnectionPool.Callbacks callbacks) {
+            this.ready = null;
+            this.callbacks = callbacks;
+        }
+    }
+
+    EndpointPool(Endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @param policy which of the idle connections to take
+     * @return an idle connection chosen by the policy, now acquired, or null if there are none
+     */
+    HttpSocket acquireIdle(SelectionPolicy policy) {
+        switch (policy) {
+            case FIFO: return acquireOldestIdle();
+            case RANDOM_OF_TWO: return acquireRandomOfTwo();
+            default: return acquireIdle();
+        }
+    }
+
+    /**
+     * @return the most recently released idle connection, now acquired, or null if there are none
+     */
+    HttpSocket acquireIdle() {
+        for(HttpSocket conn; (conn = idle.pollFirst()) != null; ) {
+            if(conn.acquireIfIdle()) return conn;
+            //otherwise, someone acquired it directly; it comes back here once it's released
+        }
+        return null;
+    }
+
+    /**
+     * @return the idle connection which was released the longest time ago, now acquired, or null if there are none
+     */
+    HttpSocket acquireOldestIdle() {
+        for(HttpSocket conn; (conn = idle.pollLast()) != null; ) {
+            if(conn.acquireIfIdle()) return conn;
+        }
+        return null;
+    }
+
+    //the more recent of two random idle connections; idle queue is short (at most maxConnectionsPerEndpoint)
+    private HttpSocket acquireRandomOfTwo() {
+        while(idle.size() > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(idle.size()), b = random.nextInt(idle.size() - 1);
+            if(b >= a) b++;
+            int pick = Math.min(a, b), i = 0; //queue is ordered from the most recent one
+            HttpSocket conn = null;
+            for(Iterator<HttpSocket> it = idle.iterator(); i <= pick; i++) conn = it.next();
+            idle.remove(conn);
+            if(conn.acquireIfIdle()) return conn;
+        }
+        return acquireIdle();
+    }
+
+    /**
+     * @param maxConnections maximum connections per endpoint
+     * @return whether another connection can be opened without going over the per-endpoint limit
+     */
+    boolean hasRoom(int maxConnections) {
+        return connections.size() + opening < maxConnections;
+    }
+
+    /**
+     * @return first waiter which isn't served or told to retry yet, or null if there are none
+     */
+    Waiter firstIdleWaiter() {
+        for(Waiter waiter : waiters)
+            if(waiter.socket == null && !waiter.retry) return waiter;
+        return null;
+    }
+
+    /**
+     * @return snapshot of this endpoint's stats; called with the lock held
+     */
+    PoolStats stats() {
+        return metrics.snapshot(connections.size() - idle.size(), idle.size(), opening, waiters.size());
+    }
+
+    /**
+     * Take idle connections which should be evicted or checked out of the idle queue, and acquire them so nobody
+     * else can take them.
+     * @param aliveTime maximum idling time
+     * @param maxAge maximum connection age
+     * @param minIdle number of the most recently released connections which can idle for longer than aliveTime
+     * @param expired receives connections which idled or lived for too long; they should be removed and closed
+     * @param toCheck receives the rest, which should be checked for staleness and put back if they're fine
+     */
+    void takeIdleForReaping(Duration aliveTime, Duration maxAge, int minIdle, List<HttpSocket> expired,
+                            List<HttpSocket> toCheck) {
+        int left = idle.size();
+        for(Iterator<HttpSocket> it = idle.descendingIterator(); it.hasNext(); left--) { //the oldest first
+            HttpSocket conn = it.next();
+            it.remove();
+            if(!conn.acquireIfIdle()) continue; //someone acquired it directly
+            if(conn.getAge().compareTo(maxAge) > 0) {
+                expired.add(conn);
+                continue;
+            }
+            Duration idling = Duration.ofMillis(System.currentTimeMillis() - conn.getLastUsedAt());
+            if(idling.compareTo(aliveTime) > 0 && left > minIdle) expired.add(conn);
+            else toCheck.add(conn);
+        }
+    }
+}
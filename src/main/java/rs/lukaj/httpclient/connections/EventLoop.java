@@ -0,0 +1,144 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Single-threaded selector loop servicing non-blocking channels. Loops are shared between all pools; there is one
+ * loop per available processor, and channels are assigned to them round-robin. Everything touching
+ * {@link SelectionKey}s must be run on the loop thread, using {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable {
+    /**
+     * Receives readiness events. Always called on the loop thread, so implementations shouldn't block.
+     */
+    interface Handler {
+        void onReady(SelectionKey key);
+    }
+
+    private static class Group { //lazy holder; no threads are started unless NIO transport is used
+        private static final EventLoop[] LOOPS = new EventLoop[Runtime.getRuntime().availableProcessors()];
+        private static final AtomicInteger next = new AtomicInteger(0);
+        static {
+            for(int i=0; i<LOOPS.length; i++) LOOPS[i] = new EventLoop("http-event-loop-" + i);
+        }
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    private EventLoop(String name) {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open selector", e);
+        }
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return next event loop from the shared group
+     */
+    static EventLoop next() {
+        EventLoop[] loops = Group.LOOPS;
+        return loops[Math.floorMod(Group.next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * @return whether the calling thread is this loop's thread
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run the task on the loop thread. Tasks are run in submission order.
+     * @param task task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if(!inLoop()) selector.wakeup();
+    }
+
+    /**
+     * Register the channel with this loop's selector. Registration is done asynchronously, on the loop thread,
+     * and the key is passed to the callback once it's done.
+     * @param channel non-blocking channel
+     * @param ops initial interest set
+     * @param handler handler notified when the channel is ready
+     * @param onRegistered receives the registered key, or null if registration failed
+     */
+    void register(SelectableChannel channel, int ops, Handler handler, Consumer<SelectionKey> onRegistered) {
+        execute(() -> {
+            SelectionKey key;
+            try {
+                key = channel.register(selector, ops, handler);
+            } catch (IOException | RuntimeException e) {
+                key = null;
+            }
+            onRegistered.accept(key);
+        });
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if(key.isValid()) ((Handler)key.attachment()).onReady(key);
+                    } catch (CancelledKeyException ignored) {
+                        //channel was closed in the meantime
+                    } catch (RuntimeException e) { //nor should a broken handler strand every other channel on the loop
+                        abandon(key);
+                        report(e);
+                    }
+                }
+                Runnable task;
+                while((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) { //one misbehaving task shouldn't kill the whole loop
+                        report(e);
+                    }
+                }
+            } catch (IOException e) { //selector is broken; report it and keep the loop going
+                report(e);
+            }
+        }
+    }
+
+    //handler is in an unknown state, so its channel is closed; closing the handler, if it can be closed, also wakes
+    //up whoever is waiting on it
+    private static void abandon(SelectionKey key) {
+        key.cancel();
+        try {
+            Object handler = key.attachment();
+            if(handler instanceof Closeable) ((Closeable)handler).close();
+            else key.channel().close();
+        } catch (IOException | RuntimeException ignored) {
+        }
+    }
+
+    private static void report(Throwable e) {
+        Thread t = Thread.currentThread();
+        t.getUncaughtExceptionHandler().uncaughtException(t, e);
+    }
+}
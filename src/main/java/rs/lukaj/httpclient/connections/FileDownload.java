@@ -0,0 +1,172 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Copies a response body from a {@link HttpSocket} to a file, overlapping disk writes with network reads. Two
+ * buffers are in play: while one is being written to disk by an {@link AsynchronousFileChannel}, the other is filled
+ * from the socket. Buffer size adapts to observed throughput: it grows while the network delivers full buffers and
+ * the disk keeps up, and shrinks when reads come in small pieces.
+ * <br/>
+ * {@link java.nio.channels.FileChannel#transferFrom} isn't used, because reads from a blocking channel ignore read
+ * timeout, and the JDK copies socket-to-file transfers through a buffer anyway.
+ */
+public class FileDownload {
+    public static final int MIN_BUFFER_SIZE = 8192;
+    public static final int MAX_BUFFER_SIZE = BufferPool.MAX_POOLED_SIZE;
+
+    private final HttpSocket socket;
+    private final long length;
+    private int bufferSize;
+
+    private AsynchronousFileChannel out;
+    private Future<Integer> pendingWrite;
+    private ByteBuffer writing;
+    private long writePosition;
+
+    /**
+     * @param socket socket positioned at the beginning of the body
+     * @param length number of body bytes
+     * @param initialBufferSize size of buffers at the start of the transfer
+     */
+    FileDownload(HttpSocket socket, long length, int initialBufferSize) {
+        this.socket = socket;
+        this.length = length;
+        this.bufferSize = Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, initialBufferSize));
+    }
+
+    /**
+     * Read the body and write it to the file, replacing its contents.
+     * @param to destination file
+     * @return statistics of this transfer
+     * @throws IOException if I/O error occurs on either socket or file, or if connection is closed before the
+     *                     whole body is received
+     */
+    Stats writeTo(File to) throws IOException {
+        long start = System.nanoTime();
+        BufferPool pool = BufferPool.getDefault();
+        out = AsynchronousFileChannel.open(to.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer reading = pool.lease(bufferSize);
+        long remaining = length, filePosition = 0;
+        int handoffs = 0;
+        try {
+            while(remaining > 0) {
+                int read = socket.read(reading.array(), reading.position(),
+                        (int)Math.min(bufferSize - reading.position(), remaining));
+                if(read < 0) throw new EOFException("Connection closed before whole body was received");
+                reading.position(reading.position() + read);
+                remaining -= read;
+
+                boolean full = reading.position() == bufferSize;
+                //keep filling while data is already there; the fewer and larger the writes, the better
+                if(!full && remaining > 0 && socket.inputReady()) continue;
+
+                boolean diskWasIdle = awaitWrite();
+                reading.flip();
+                writing = reading;
+                writePosition = filePosition;
+                filePosition += reading.remaining();
+                pendingWrite = out.write(writing, writePosition);
+                handoffs++;
+
+                if(full && diskWasIdle) bufferSize = Math.min(MAX_BUFFER_SIZE, bufferSize * 2);
+                else if(writing.remaining() < bufferSize / 4) bufferSize = Math.max(MIN_BUFFER_SIZE, bufferSize / 2);
+                reading = pool.lease(bufferSize);
+            }
+            awaitWrite();
+        } finally {
+            pool.release(reading);
+            if(pendingWrite != null) { //something went wrong; the write can't be stopped, but we can wait for it
+                try { pendingWrite.get(); } catch (InterruptedException | ExecutionException ignored) {}
+                pool.release(writing);
+            }
+            out.close();
+        }
+        return new Stats(length, System.nanoTime() - start, handoffs);
+    }
+
+    //waits until the buffer which is being written is fully written and returns it to the pool
+    //returns whether the write was already finished before we started waiting
+    private boolean awaitWrite() throws IOException {
+        if(pendingWrite == null) return true;
+        boolean wasDone = pendingWrite.isDone();
+        try {
+            while(true) {
+                int written = pendingWrite.get();
+                writePosition += written;
+                if(!writing.hasRemaining()) break;
+                pendingWrite = out.write(writing, writePosition); //partial write; rare, but allowed by the API
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing to file");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            throw new IOException("Error while writing to file", e.getCause());
+        }
+        pendingWrite = null;
+        BufferPool.getDefault().release(writing);
+        writing = null;
+        return wasDone;
+    }
+
+    /**
+     * Statistics of a finished download.
+     */
+    public static class Stats {
+        private final long bytes;
+        private final long nanos;
+        private final int writes;
+
+        private Stats(long bytes, long nanos, int writes) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.writes = writes;
+        }
+
+        /**
+         * @return number of bytes written to the file
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return how long the transfer took, from the first read to the last write
+         */
+        public Duration getDuration() {
+            return Duration.ofNanos(nanos);
+        }
+
+        /**
+         * @return number of writes issued to the file
+         */
+        public int getWrites() {
+            return writes;
+        }
+
+        /**
+         * @return achieved throughput, in megabytes (10^6 bytes) per second
+         */
+        public double getMegabytesPerSecond() {
+            if(nanos == 0) return 0;
+            return bytes / 1e6 / (nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes in %d ms (%.2f MB/s, %d writes)", bytes, nanos / 1_000_000,
+                    getMegabytesPerSecond(), writes);
+        }
+    }
+}
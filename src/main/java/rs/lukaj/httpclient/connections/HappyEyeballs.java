@@ -0,0 +1,177 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects to an endpoint which resolves to several addresses, in the spirit of Happy Eyeballs (RFC 8305). Attempts
+ * are started one by one, {@link #ATTEMPT_DELAY} apart (or right away when the previous one fails), alternating
+ * between IPv6 and IPv4, and are raced against each other: the first connection to be established wins, and all the
+ * others are abandoned. A slow or dead address therefore costs at most a fraction of a second instead of the whole
+ * connect timeout.
+ * <br/>
+ * How long connecting to each address took is remembered, so next time the fastest addresses are tried first, and
+ * those which recently failed are tried last.
+ */
+final class HappyEyeballs {
+    static final Duration ATTEMPT_DELAY = Duration.ofMillis(250);
+    /**
+     * Recorded instead of the connect time when an attempt fails, so the address drops to the back of the line.
+     */
+    private static final long FAILURE_PENALTY = Duration.ofSeconds(5).toNanos();
+    private static final int MAX_REMEMBERED = 4096;
+
+    //exponentially weighted moving average of connect time, in nanoseconds
+    private static final Map<InetAddress, Long> connectTimes = new ConcurrentHashMap<>();
+
+    private HappyEyeballs() {}
+
+    /**
+     * Connect to the endpoint. If it has a single address, this is a plain blocking connect.
+     * @param endpoint endpoint to connect to
+     * @param options options applied to sockets before connecting; its connect timeout applies to all attempts
+     *                together
+     * @return connected channel, in blocking mode if endpoint has a single address and in non-blocking mode
+     *         otherwise; caller should set whichever mode it needs
+     * @throws IOException if no attempt succeeded; this is the exception of the last failed attempt
+     */
+    static SocketChannel connect(Endpoint endpoint, SocketOptions options) throws IOException {
+        List<InetAddress> addresses = endpoint.getAddresses();
+        if(addresses.size() == 1) {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                options.applyTo(channel.socket());
+                channel.socket().connect(new InetSocketAddress(addresses.get(0), endpoint.getPort()),
+                        SocketOptions.toMillis(options.getConnectTimeout()));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+        return race(order(addresses), endpoint.getPort(), options);
+    }
+
+    private static class Attempt {
+        final InetAddress address;
+        final SocketChannel channel;
+        final long start = System.nanoTime();
+
+        Attempt(InetAddress address, SocketChannel channel) {
+            this.address = address;
+            this.channel = channel;
+        }
+    }
+
+    private static SocketChannel race(List<InetAddress> addresses, int port, SocketOptions options) throws IOException {
+        long timeout = options.getConnectTimeout().toNanos();
+        long deadline = System.nanoTime() + (timeout == 0 ? Long.MAX_VALUE / 2 : timeout);
+        List<Attempt> attempts = new ArrayList<>(addresses.size());
+        SocketChannel winner = null;
+        IOException failure = null;
+        int next = 0, inFlight = 0;
+        long nextAttemptAt = System.nanoTime();
+
+        try (Selector selector = Selector.open()) {
+            while(winner == null) {
+                long now = System.nanoTime();
+                if(next < addresses.size() && (now - nextAttemptAt >= 0 || inFlight == 0)) {
+                    InetAddress address = addresses.get(next++);
+                    SocketChannel channel = SocketChannel.open();
+                    Attempt attempt = new Attempt(address, channel);
+                    attempts.add(attempt);
+                    try {
+                        options.applyTo(channel.socket());
+                        channel.configureBlocking(false);
+                        if(channel.connect(new InetSocketAddress(address, port))) {
+                            winner = won(attempt);
+                        } else {
+                            channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+                            inFlight++;
+                            nextAttemptAt = now + ATTEMPT_DELAY.toNanos();
+                        }
+                    } catch (IOException e) {
+                        failure = failed(attempt, e);
+                    }
+                    continue;
+                }
+                if(inFlight == 0) throw failure != null ? failure : new ConnectException("No addresses to connect to");
+                if(deadline - now <= 0) throw new SocketTimeoutException("Connect timed out");
+
+                long wait = deadline - now;
+                if(next < addresses.size()) wait = Math.min(wait, nextAttemptAt - now);
+                selector.select(Math.max(1, wait / 1_000_000));
+                for(SelectionKey key : selector.selectedKeys()) {
+                    Attempt attempt = (Attempt)key.attachment();
+                    try {
+                        if(!attempt.channel.finishConnect()) continue;
+                        if(winner == null) winner = won(attempt);
+                    } catch (IOException e) {
+                        key.cancel();
+                        inFlight--;
+                        failure = failed(attempt, e);
+                        nextAttemptAt = System.nanoTime(); //don't wait for the delay; start the next one now
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally { //closing the selector has deregistered the winner, so caller can change its blocking mode
+            for(Attempt attempt : attempts) {
+                if(attempt.channel != winner) attempt.channel.close();
+            }
+        }
+        return winner;
+    }
+
+    private static SocketChannel won(Attempt attempt) {
+        record(attempt.address, System.nanoTime() - attempt.start);
+        return attempt.channel;
+    }
+
+    private static IOException failed(Attempt attempt, IOException e) throws IOException {
+        record(attempt.address, FAILURE_PENALTY);
+        attempt.channel.close();
+        return e;
+    }
+
+    private static void record(InetAddress address, long nanos) {
+        if(connectTimes.size() >= MAX_REMEMBERED && !connectTimes.containsKey(address))
+            connectTimes.clear(); //crude, but we don't expect to talk to thousands of hosts
+        connectTimes.merge(address, nanos, (old, sample) -> old + (sample - old) / 4);
+    }
+
+    /**
+     * Order addresses for connecting: families are interleaved, starting with the family of the first address (which
+     * the resolver prefers), and then addresses we have connected to before are moved to the front, fastest first.
+     * Those which failed recently go to the back. Otherwise, resolver's order is kept.
+     * @param addresses resolved addresses, in resolver's order
+     * @return addresses in the order in which they should be tried
+     */
+    static List<InetAddress> order(List<InetAddress> addresses) {
+        List<InetAddress> first = new ArrayList<>(), second = new ArrayList<>();
+        boolean firstIs6 = addresses.get(0) instanceof Inet6Address;
+        for(InetAddress address : addresses)
+            ((address instanceof Inet6Address) == firstIs6 ? first : second).add(address);
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for(int i=0; i<Math.max(first.size(), second.size()); i++) {
+            if(i < first.size()) ordered.add(first.get(i));
+            if(i < second.size()) ordered.add(second.get(i));
+        }
+        //unknown ones go after those which are known to work, but before those which are known to fail; sort is stable
+        ordered.sort(Comparator.comparingLong(address -> connectTimes.getOrDefault(address, FAILURE_PENALTY - 1)));
+        return ordered;
+    }
+}
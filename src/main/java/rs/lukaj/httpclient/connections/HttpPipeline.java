@@ -0,0 +1,346 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * HTTP/1.1 pipeline over a single pooled connection: requests are written back-to-back, without waiting for the
+ * responses to the previous ones, and responses are handed to callers in the order their requests were sent. Each
+ * caller gets an {@link Exchange}; it waits for its turn to read, and passes the turn on once it's closed.
+ * <br/>
+ * Only idempotent requests without a body are pipelined. If the connection breaks, or server does something that
+ * makes the rest of the pipeline unreadable (a response whose length isn't known, an HTTP/1.0 response...), requests
+ * whose response hasn't started arriving are sent again on another connection, and the endpoint is switched to one
+ * request at a time. Callers waiting for their turn give up on the pipeline (and send their requests again) if the
+ * turn doesn't move for as long as the connection's read timeout, e.g. because someone ahead of them isn't reading
+ * or closing their exchange.
+ * <br/>
+ * Pipelines are managed by the pool; see {@link ConfigurableConnectionPool#sendPipelined(HttpRequest)}.
+ */
+public class HttpPipeline {
+    /**
+     * Pool which lent the connection to the pipeline.
+     */
+    interface Owner {
+        /**
+         * Called once the pipeline won't take more requests and all of its exchanges are closed, before the
+         * connection is given back (released or closed).
+         */
+        void onRetired(HttpPipeline pipeline);
+
+        /**
+         * Called when server broke pipelining on this endpoint; later requests should go one at a time.
+         */
+        void onMisbehaved(Endpoint endpoint);
+
+        /**
+         * Send a request which didn't get its response on this pipeline.
+         */
+        Exchange resend(HttpRequest request) throws IOException, TimeoutException;
+    }
+
+    private final HttpSocket socket;
+    private final Owner owner;
+    private final Object writing = new Object(); //requests are numbered and written under this, so order matches
+    //all of the following are guarded by this
+    private int reserved; //exchanges which aren't closed yet
+    private int unsent; //reserved exchanges which aren't sent yet
+    private long sent; //number of requests written
+    private long turn; //number of the request whose response is being read
+    private long end = Long.MAX_VALUE; //number of the first request which won't get a response here
+    private boolean open = true; //whether more requests can be added
+    private boolean broken; //whether connection can't be reused once everyone's done
+    private final Map<Long, Thread> users = new HashMap<>(); //threads which sent the unfinished exchanges, by number
+    private final Map<Long, Exchange> deferred = new HashMap<>(); //closed before their turn; drained once it comes
+
+    /**
+     * @param socket acquired connection; it's released (or closed, if pipeline breaks) once pipeline retires
+     * @param owner pool which lent the connection
+     */
+    HttpPipeline(HttpSocket socket, Owner owner) {
+        this.socket = socket;
+        this.owner = owner;
+    }
+
+    /**
+     * @return endpoint this pipeline's connection goes to
+     */
+    public Endpoint getEndpoint() {
+        return socket.getEndpoint();
+    }
+
+    /**
+     * @return number of requests currently in the pipeline, i.e. exchanges which aren't closed yet
+     */
+    public synchronized int getDepth() {
+        return reserved;
+    }
+
+    /**
+     * Take a place in the pipeline, if there's room. Pipeline retires once server won't take more requests on the
+     * connection (it said Connection: close, or Keep-Alive max was reached).
+     * @param request request to send
+     * @param depth maximum number of requests in the pipeline
+     * @return exchange which should be {@link Exchange#send() sent}, or null if pipeline is full or retiring
+     */
+    synchronized Exchange reserve(HttpRequest request, int depth) {
+        if(!open || reserved >= depth) return null;
+        if(unsent >= socket.requestsLeft()) {
+            open = false;
+            return null;
+        }
+        reserved++;
+        unsent++;
+        return new Exchange(request);
+    }
+
+    //blocks until it's the exchange's turn to read; returns false if its response won't come on this pipeline. If
+    //turn doesn't move for read timeout, whoever's ahead is stuck; pipeline ends before this exchange
+    private synchronized boolean awaitTurn(long seq) throws IOException {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(socket.getReadTimeout());
+        long waitingFor = turn, deadline = System.nanoTime() + timeout;
+        try {
+            while(turn < seq && seq < end) {
+                if(timeout == 0) {
+                    wait();
+                    continue;
+                }
+                if(turn != waitingFor) {
+                    waitingFor = turn;
+                    deadline = System.nanoTime() + timeout;
+                }
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    endAfter(seq - 1, true);
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for pipelined response", e);
+        }
+        return seq < end;
+    }
+
+    //whether an earlier exchange which isn't finished was sent by this thread, so waiting would never end
+    private synchronized boolean waitsOnItself(long seq) {
+        Thread current = Thread.currentThread();
+        for(Map.Entry<Long, Thread> user : users.entrySet())
+            if(user.getKey() >= turn && user.getKey() < seq && user.getValue() == current) return true;
+        return false;
+    }
+
+    //next exchange closed out of order whose turn came, or whose response won't come here at all
+    private synchronized Exchange takeDeferred() {
+        for(Long seq : deferred.keySet())
+            if(seq == turn || seq >= end) return deferred.remove(seq);
+        return null;
+    }
+
+    private synchronized boolean sentAfter(long seq) {
+        return sent > seq + 1;
+    }
+
+    //nobody after the given request gets a response here
+    private synchronized void endAfter(long seq, boolean broken) {
+        open = false;
+        end = Math.min(end, seq + 1);
+        this.broken |= broken;
+        notifyAll();
+    }
+
+    //the exchange is done; passes the turn to the next one, and gives the connection back if that was the last one
+    private void finish(long seq) {
+        boolean retired, broken;
+        synchronized (this) {
+            if(seq == turn) turn++;
+            users.remove(seq);
+            reserved--;
+            if(reserved == 0) open = false; //a new pipeline is started when needed, on whichever connection's idle
+            retired = reserved == 0;
+            broken = this.broken;
+            notifyAll();
+        }
+        for(Exchange next; (next = takeDeferred()) != null; ) next.drain();
+        if(!retired) return;
+        owner.onRetired(this);
+        if(!broken) {
+            socket.release();
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) { //we're done with it anyway
+        }
+    }
+
+    /**
+     * A single request in the pipeline. Read the response using {@link #getResponse()}, and close the exchange once
+     * you're done with it, since responses to the requests sent after this one can't be read before that. Exchanges
+     * should be used by a single thread. Chunked responses have to be read on that thread too (e.g. using
+     * {@link HttpSocket#aggregateChunks(long)}), not in background.
+     * <br/>
+     * A thread holding several exchanges on the same pipeline has to close each one before reading the response of
+     * the next; otherwise reading throws {@link IllegalStateException}, since it would wait for itself. Closing them
+     * in any order is fine (like try-with-resources does, in reverse): an exchange closed before its turn is finished
+     * once the earlier ones are.
+     */
+    public class Exchange implements Closeable {
+        private final HttpRequest request;
+        private long seq = -1; //position in the pipeline, once it's sent
+        private HttpResponse response;
+        private Exchange resent; //exchange on another connection, if this one's response won't come here
+        private IOException failure;
+        private boolean finished, closed;
+
+        private Exchange(HttpRequest request) {
+            this.request = request;
+        }
+
+        /**
+         * Write the request. If writing fails, failure is reported when response is read.
+         */
+        void send() {
+            ByteBuffer head;
+            try {
+                head = request.encodeHead();
+            } catch (RuntimeException e) { //request is invalid; it never makes it to the pipeline
+                synchronized (HttpPipeline.this) {
+                    unsent--;
+                }
+                finish();
+                throw e;
+            }
+            try {
+                synchronized (writing) {
+                    synchronized (HttpPipeline.this) {
+                        unsent--;
+                        if(sent >= end) return; //pipeline broke in the meantime; we'll be resent
+                        if(!socket.countRequest()) { //server won't answer it; we'll be resent
+                            endAfter(sent - 1, false);
+                            return;
+                        }
+                        seq = sent++;
+                        users.put(seq, Thread.currentThread());
+                    }
+                    socket.write(head);
+                }
+            } catch (IOException e) {
+                failure = e;
+                endAfter(seq - 1, true);
+            } finally {
+                BufferPool.getDefault().release(head);
+            }
+        }
+
+        /**
+         * Wait for the response to this request and parse its status line and headers. If the connection breaks
+         * before the response starts arriving, request is sent again on another connection. Body is read using
+         * the returned response, just like with requests which aren't pipelined.
+         * @return response to the request
+         * @throws IOException if response can't be read, e.g. server didn't answer within the read timeout
+         * @throws TimeoutException if request had to be sent again, and waiting for a connection timed out
+         * @throws IllegalStateException if this thread has an earlier exchange on the pipeline which isn't closed
+         */
+        public HttpResponse getResponse() throws IOException, TimeoutException {
+            if(closed) throw new IllegalStateException("Exchange is closed!");
+            if(resent != null) return resent.getResponse();
+            if(response != null) return response;
+            if(seq >= 0 && waitsOnItself(seq))
+                throw new IllegalStateException("Close the earlier exchanges on this pipeline first!");
+            if(seq < 0 || !awaitTurn(seq)) return resend();
+            try {
+                response = HttpResponse.from(socket, request).parseResponse();
+            } catch (IOException | RuntimeException e) {
+                //server taking too long isn't a sign of a stale connection; like HttpTransaction, we don't resend
+                boolean timedOut = e instanceof SocketTimeoutException;
+                if(!timedOut && sentAfter(seq)) owner.onMisbehaved(getEndpoint()); //closed on us mid-pipeline
+                endAfter(seq - 1, true);
+                if(e instanceof RuntimeException || timedOut) { //malformed response, or server is stuck
+                    finish();
+                    throw e;
+                }
+                failure = (IOException)e;
+                return resend();
+            }
+            boolean http10 = response.getStatus().httpVersion.equals(Http.Version.HTTP10.toString());
+            if(http10 || !socket.isBodyFramed()) { //we can't tell where the next response starts
+                owner.onMisbehaved(getEndpoint());
+                endAfter(seq, true);
+            } else if(socket.willClose()) {
+                endAfter(seq, false);
+            }
+            return response;
+        }
+
+        //requests are idempotent, so sending them again is fine. We give up if it was the first request on a new
+        //connection, like HttpTransaction does for stale connections, so a broken endpoint doesn't loop forever
+        private HttpResponse resend() throws IOException, TimeoutException {
+            finish();
+            if(seq == 0 && !socket.wasReused())
+                throw failure != null ? failure : new IOException("Connection closed before response arrived");
+            resent = owner.resend(request);
+            return resent.getResponse();
+        }
+
+        /**
+         * Finish the exchange, throwing away whatever's left of the response, and let the next request in the
+         * pipeline read its response. If response hasn't been read yet, this waits for it first.
+         */
+        @Override
+        public void close() {
+            if(closed) return;
+            closed = true;
+            if(resent != null) {
+                resent.close();
+                return;
+            }
+            if(finished) return;
+            if(seq >= 0 && waitsOnItself(seq)) {
+                synchronized (HttpPipeline.this) {
+                    deferred.put(seq, this); //whoever finishes the one before us drains this one
+                }
+                return;
+            }
+            try {
+                if(seq >= 0 && awaitTurn(seq)) discard();
+            } catch (IOException | RuntimeException e) {
+                endAfter(seq, true);
+            }
+            finish();
+        }
+
+        //called once the turn of an exchange closed out of order comes
+        private void drain() {
+            try {
+                boolean ours;
+                synchronized (HttpPipeline.this) {
+                    ours = seq < end;
+                }
+                if(ours) discard();
+            } catch (IOException | RuntimeException e) {
+                endAfter(seq, true);
+            }
+            finish();
+        }
+
+        //throws away the response, so the next one can be read
+        private void discard() throws IOException {
+            if(response == null) response = HttpResponse.from(socket, request).parseResponse();
+            if(!socket.skipBody()) endAfter(seq, true); //body too large, or we lost track of it
+        }
+
+        private void finish() {
+            if(finished) return;
+            finished = true;
+            HttpPipeline.this.finish(seq);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
@@ -83,6 +84,13 @@ public class HttpRequest {
         return this;
     }
 
+    /**
+     * @return method of this request
+     */
+    public Http.Verb getVerb() {
+        return httpVerb;
+    }
+
     /**
      * @return HTTP version used by this request
      */
@@ -97,6 +105,30 @@ public class HttpRequest {
         return headers;
     }
 
+    /**
+     * @return whether sending this request more than once has the same effect as sending it once, so it can be
+     *         retried or pipelined
+     */
+    boolean isIdempotent() {
+        return httpVerb.isMethodIdempotent();
+    }
+
+    /**
+     * @return endpoint this request goes to
+     */
+    Endpoint getEndpoint() throws UnknownHostException, MalformedURLException {
+        return EndpointCache.getDefault().get(target);
+    }
+
+    /**
+     * Verify the request and encode its head, to be written by the caller.
+     * @return encoded head, leased from the default {@link BufferPool}, in read mode
+     */
+    ByteBuffer encodeHead() {
+        verifyRequest();
+        return RequestEncoder.encodeHead(httpVerb, targetAny ? "*" : target.getFile(), httpVersion, headers);
+    }
+
     /**
      * @return Whether this request can be cached
      */
@@ -106,12 +138,14 @@ public class HttpRequest {
 
     private void verifyRequest() {
         if(setHostHeader && !headers.hasHeader("Host")) headers.setHost(target.getHost());
+        //body can be empty, and its type is up to the server to guess if it isn't set, but it has to be framed
         if(httpVerb.mustProvideRequestBody()
-                && (!headers.hasHeader("Content-Length") || !headers.hasHeader("Content-Type"))) {
-            throw new InvalidRequestException("Must provide body, but content length or type not set!");
+                && !headers.hasHeader("Content-Length") && !headers.hasHeader("Transfer-Encoding")) {
+            throw new InvalidRequestException("Must provide body, but content length isn't set!");
         }
-        if(!httpVerb.canProvideRequestBody()
-                && (headers.hasHeader("Content-Length") || headers.hasHeader("Content-Type"))) {
+        String length = headers.getHeader("Content-Length");
+        if(!httpVerb.canProvideRequestBody() && ((length != null && !length.trim().equals("0"))
+                || headers.hasHeader("Transfer-Encoding") || headers.hasHeader("Content-Type"))) {
             throw new InvalidRequestException("Can't provide body, but has set content length or content type!");
         }
         if(!httpVerb.isSupported()) {
@@ -122,17 +156,16 @@ public class HttpRequest {
         }
     }
 
-    private void setupConnection(HttpSocket conn) throws IOException {
-        conn.print(httpVerb + " " + (targetAny ? "*" : target.getFile()) + " " + httpVersion + "\r\n");
-        conn.print(headers.toString());
-        conn.print("\r\n");
-        conn.flush();
+    //head isn't flushed here; it goes out together with the body, or right before the response is read
+    private void setupConnection(HttpSocket conn) {
+        conn.writeHead(RequestEncoder.encodeHead(httpVerb, targetAny ? "*" : target.getFile(), httpVersion, headers));
     }
 
     /**
      * Establishes connection to server in a blocking fashion, on this thread. Timeout is defined by
      * {@link ConfigurableConnectionPool.Config} as per the requirements. It might fail with TimeoutException if timeout is reached.
-     * You can assume headers are sent, and use the returned connection to send request body and read the response.
+     * You can assume headers are sent (they actually go out together with the body, or right before the response is
+     * read), and use the returned connection to send request body and read the response.
      * @param connections connection pool used for obtaining a connection
      * @return connection used to communicate with the server
      * @throws IOException if URL is bad (e.g. using neither http:// and port number), host is unknown, or other I/O
@@ -141,15 +174,15 @@ public class HttpRequest {
      */
     public HttpSocket connectNow(ConnectionPool connections) throws IOException, TimeoutException {
         verifyRequest();
-        Endpoint endpoint = Endpoint.fromUrl(target);
-        HttpSocket conn = connections.getConnectionBlocking(endpoint);
+        HttpSocket conn = connections.getConnectionBlocking(getEndpoint());
         setupConnection(conn);
         return conn;
     }
 
     /**
      * Establishes connection to server in a blocking fashion, on this thread. It uses given socket for the request.
-     * You can assume headers are sent, and use the returned connection to send request body and read the response.
+     * You can assume headers are sent (they actually go out together with the body, or right before the response is
+     * read), and use the returned connection to send request body and read the response.
      * @param socket socket over which data is passed
      * @return connection used to communicate with the server
      */
@@ -173,16 +206,11 @@ public class HttpRequest {
     public void connectLater(ConnectionPool connections, ConnectionPool.Callbacks callbacks, Executor executor)
             throws MalformedURLException, UnknownHostException {
         verifyRequest();
-        Endpoint endpoint = Endpoint.fromUrl(target);
-        connections.getConnectionAsync(endpoint, new ConnectionPool.Callbacks() {
+        connections.getConnectionAsync(getEndpoint(), new ConnectionPool.Callbacks() {
             @Override
             public void onConnectionObtained(HttpSocket connection) {
                 executor.execute(() -> {
-                    try {
-                        setupConnection(connection);
-                    } catch (IOException e) {
-                        onExceptionThrown(e);
-                    }
+                    setupConnection(connection);
                     callbacks.onConnectionObtained(connection);
                 });
             }
@@ -3,7 +3,11 @@ package rs.lukaj.httpclient.connections;
 import rs.lukaj.httpclient.Utils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -127,6 +131,7 @@ public class HttpResponse {
     private boolean throwIfInformativeResponse = false;
     private boolean allowInvalidHttpVersion = true;
     private int fileBufferSize = 51_200;
+    private FileDownload.Stats downloadStats;
 
     private boolean parsed = false;
     private Object body;
@@ -200,7 +205,8 @@ public class HttpResponse {
     }
 
     /**
-     * Set size for a buffer used when writing request body to file.
+     * Set size for a buffer used when writing request body to file. This is only the initial size; it's adjusted
+     * during the transfer depending on the throughput.
      * @param size size of the buffer
      * @return this, to allow chaining
      */
@@ -229,9 +235,14 @@ public class HttpResponse {
         return this;
     }
 
-    private void readHeaders() throws IOException {
+    //where status lines and headers come from: the socket, or lines which were already read from it
+    private interface Lines {
+        String next() throws IOException;
+    }
+
+    private void readHeaders(Lines lines) throws IOException {
         String line;
-        while(!(line = socket.readLine()).isEmpty()) {
+        while(!(line = lines.next()).isEmpty()) {
             headers.appendHeader(line);
         }
     }
@@ -250,6 +261,24 @@ public class HttpResponse {
      * @throws IOException
      */
     public HttpResponse parseResponse() throws IOException {
+        return parse(socket::readLine);
+    }
+
+    /**
+     * Parse status line and headers which were already read from the socket (without blocking, see
+     * {@link ResponseReader}), the same way {@link #parseResponse()} would read them.
+     * @param lines lines of the response head, including the empty line at the end (and informative responses
+     *              before it, if any)
+     * @return this response
+     */
+    HttpResponse parseResponse(Iterator<String> lines) throws IOException {
+        return parse(() -> {
+            if(!lines.hasNext()) throw new InvalidResponseException("Response head ended too early");
+            return lines.next();
+        });
+    }
+
+    private HttpResponse parse(Lines lines) throws IOException {
         if(parsed) return this;
         int infoResponses = 0;
         do {
@@ -257,20 +286,55 @@ public class HttpResponse {
                 if(throwIfInformativeResponse) throw new InvalidResponseException("Too many informative responses!");
                 else break;
             }
-            status = new Status(socket.readLine());
+            status = new Status(lines.next());
             if(!status.httpVersion.equals(request.getHttpVersion().toString())) {
                 if(!allowInvalidHttpVersion) throw new InvalidResponseException("Invalid HTTP version: " + status.httpVersion);
                 System.err.println("Warning: invalid HTTP version returned by server: " + status.httpVersion);
             }
             headers = new ResponseHeaders();
-            readHeaders();
+            readHeaders(lines);
             infoResponses++;
         } while (status.responseCode/100 == 1); //informative status lines - ignored
-
+        socket.responseArrived();
+
+        //tell the socket how much body to expect, so it knows whether it can be reused if body is left unread
+        if(!status.getCode().hasBody() || request.getVerb() == Http.Verb.HEAD) socket.expectBody(0);
+        else if("chunked".equals(headers.getTransferEncoding())) socket.expectChunkedBody();
+        else if(headers.getContentLength() != null && !headers.getContentLength().isEmpty())
+            socket.expectBody(getContentLength());
+        applyKeepAlive();
         parsed = true;
         return this;
     }
 
+    //tells the socket for how long and for how many more requests server keeps the connection open, so it's retired
+    //before server closes it. HTTP/1.0 servers close the connection after each response, unless they say otherwise
+    private void applyKeepAlive() {
+        String connection = headers.getConnection();
+        connection = connection == null ? "" : connection.toLowerCase();
+        if(connection.contains("close") || (status.httpVersion.equals(Http.Version.HTTP10.toString())
+                && !connection.contains("keep-alive"))) {
+            socket.closeAfterResponse();
+            return;
+        }
+        String keepAlive = headers.getKeepAlive();
+        if(keepAlive == null) return;
+        long timeout = -1;
+        int max = -1;
+        for(String param : keepAlive.split(",")) { //e.g. "timeout=5, max=100"
+            String[] nameValue = param.trim().split("=", 2);
+            if(nameValue.length < 2) continue;
+            try {
+                if(nameValue[0].trim().equalsIgnoreCase("timeout"))
+                    timeout = TimeUnit.SECONDS.toMillis(Long.parseLong(nameValue[1].trim()));
+                else if(nameValue[0].trim().equalsIgnoreCase("max"))
+                    max = Integer.parseInt(nameValue[1].trim());
+            } catch (NumberFormatException ignored) { //it's only a hint
+            }
+        }
+        socket.keepAlive(timeout, max);
+    }
+
     /**
      * Get data from Status-Line received in this response.
      * @return status line data
@@ -327,16 +391,25 @@ public class HttpResponse {
             return "";
         }
         else {
-            byte[] data = new byte[len];
-            int off = 0;
-            while(len > 0) {
-                int read = socket.read(data, off, len);
-                len-=read;
-                off+=read;
+            ByteBuffer buffer = BufferPool.getDefault().lease(len);
+            try {
+                byte[] data = buffer.array();
+                int off = 0, remaining = len;
+                while(remaining > 0) {
+                    int read = socket.read(data, off, remaining);
+                    if(read < 0) throw new EOFException("Connection closed before whole body was received");
+                    remaining-=read;
+                    off+=read;
+                }
+                String encoding = getHeaders().getContentEncoding();
+                String body;
+                if(encoding == null || encoding.equals("identity")) body = new String(data, 0, len, UTF_8);
+                else body = new String(Utils.decompress(data, 0, len, encoding), UTF_8);
+                if(cachingPolicy.shouldStoreInCache(request, this)) cache.putString(request, body);
+                return body;
+            } finally {
+                BufferPool.getDefault().release(buffer);
             }
-            String body = new String(Utils.decompress(data, getHeaders().getContentEncoding()), UTF_8);
-            if(cachingPolicy.shouldStoreInCache(request, this)) cache.putString(request, body);
-            return body;
         }
     }
 
@@ -348,6 +421,7 @@ public class HttpResponse {
      * or some other header)
      * @param callbacks callbacks used to inform when chunks are read
      * @param executor executor on which callbacks are executed
+     * @return future completed after the final callback has been executed
      * @see HttpSocket#readChunks(HttpSocket.ChunkCallbacks, Executor)
      */
     //Spec (and reality) here is really awkward. This client uses the following interpretation:
@@ -356,10 +430,10 @@ public class HttpResponse {
     //and pass the uncompressed bytes to the callback
     //we're not supporting reading all the chunks at once because if they're gzipped/deflated we'd have no idea
     //where each one starts or ends (HttpSocket allows reading all at once though, so go use that)
-    public void getChunks(HttpSocket.ChunkCallbacks callbacks, Executor executor) {
+    public CompletableFuture<Void> getChunks(HttpSocket.ChunkCallbacks callbacks, Executor executor) {
         //yeah, we're not doing caching here, sorry
         if(cache.exists(request)) cache.evict(request);
-        socket.readChunks(new HttpSocket.ChunkCallbacks() {
+        return socket.readChunks(new HttpSocket.ChunkCallbacks() {
             @Override
             public void onChunkReceived(byte[] chunk) {
                 try {
@@ -369,13 +443,14 @@ public class HttpResponse {
                 }
             }
 
+            @Override
+            public void onTrailer(String trailer) {
+                if(trailer.indexOf(':') > 0) headers.appendHeader(trailer);
+                callbacks.onTrailer(trailer);
+            }
+
             @Override
             public void onEndTransfer() {
-                try {
-                    readHeaders();
-                } catch (IOException e) {
-                    onExceptionThrown(e);
-                }
                 callbacks.onEndTransfer();
             }
 
@@ -389,6 +464,7 @@ public class HttpResponse {
 
     /**
      * Writes body content to file. This method ignores Content-Encoding header and writes the body as-is.
+     * Disk writes are overlapped with reading from the network; see {@link FileDownload}.
      * @param to to which file body should be written
      * @return file to which body was written
      * @throws IOException if I/O exception occurs
@@ -405,19 +481,11 @@ public class HttpResponse {
         int len = getContentLength();
         if(len == 0) return to;
         else {
-            FileOutputStream fos = new FileOutputStream(to);
-            byte[] buffer = new byte[fileBufferSize];
             //we're not supporting decompressing gzip-encoded or deflated files
             //it could be done by using ByteArrayInputStream chained to GzipInputStream/InflaterInputStream, which
             //is outputted to the FileOutputStream. But if server sends you a gzip-encoded file, I suppose you know
             //better what to do with it
-            while(len > 0) {
-                //bytes.reset();
-                int sz = Math.min(len, fileBufferSize);
-                int read = socket.read(buffer, 0, sz);
-                fos.write(buffer, 0, read);
-                len-=read;
-            }
+            downloadStats = new FileDownload(socket, len, fileBufferSize).writeTo(to);
             if(request != null && cachingPolicy.shouldStoreInCache(request, this)) {
                 cache.putFile(request, to);
             }
@@ -425,6 +493,14 @@ public class HttpResponse {
         }
     }
 
+    /**
+     * Get statistics (including achieved throughput) of writing the body to file.
+     * @return statistics of the last {@link #writeBodyToFile(File)}, or null if body hasn't been written to file
+     */
+    public FileDownload.Stats getDownloadStats() {
+        return downloadStats;
+    }
+
     /**
      * Represents data contained in a Status-Line of the response. Contains HTTP version, response code and a
      * a response phrase.
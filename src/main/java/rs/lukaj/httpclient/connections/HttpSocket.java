@@ -1,60 +1,223 @@
 package rs.lukaj.httpclient.connections;
 
-import rs.lukaj.httpclient.Utils;
-
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLSession;
 import java.io.*;
-import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * Represents a socket used for communicating with the nework. Supports HTTP and HTTPS {@link Endpoint}s.
- * Socket and connection are used interchangeably.
+ * Socket and connection are used interchangeably. Bytes are moved by the underlying transport, chosen using
+ * {@link TransportMode}.
  */
 //todo possible improvement: make it compatible with URLConnection
 public class HttpSocket implements Closeable {
-    private static final boolean AUTOFLUSH = true;
+    /**
+     * How long reads can block before giving up, unless changed by {@link #setReadTimeout(Duration)} or
+     * {@link SocketOptions#setReadTimeout(Duration)}.
+     */
+    public static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(30);
+    /**
+     * How many bytes of unread response body are thrown away on release to keep the connection, unless changed by
+     * {@link #setMaxDrain(long)}. If more than that is left, connection is closed instead.
+     */
+    public static final long DEFAULT_MAX_DRAIN = 64 * 1024;
+
+    /**
+     * Set how many chunked responses can be read in background over blocking transports at once, across all sockets.
+     * Each of them holds a thread while it's being read. Default is 256.
+     * @param max maximum number of concurrent background reads; must be positive
+     * @see #readChunks(ChunkCallbacks, Executor)
+     */
+    public static void setMaxBlockingChunkReaders(int max) {
+        ReaderScheduler.setMaxBlocking(max);
+    }
+
+    /**
+     * @return how many chunked responses can be read in background over blocking transports at once
+     */
+    public static int getMaxBlockingChunkReaders() {
+        return ReaderScheduler.getMaxBlocking();
+    }
+
+    /**
+     * Notified when the socket becomes available again or goes away, so waiting callers can be served right away.
+     */
+    interface Owner {
+        /**
+         * Called after the socket is released, outside of any socket locks.
+         */
+        void onReleased(HttpSocket socket);
 
+        /**
+         * Called after the socket is closed.
+         */
+        void onClosed(HttpSocket socket);
+
+        /**
+         * Called when whoever acquired the socket is done with it (released or closed it). Called outside of any
+         * socket locks, before {@link #onReleased(HttpSocket)}. If no request was answered and nothing failed in the
+         * meantime, lease has no outcome (failed is false and responseNanos is -1).
+         * @param failed whether an I/O operation on the socket threw
+         * @param responseNanos time from the last write to the first byte of response, or -1 if there wasn't one
+         */
+        void onLeaseEnded(HttpSocket socket, boolean failed, long responseNanos);
+    }
+
+    private final Endpoint endpoint;
+    private volatile Owner owner;
+    //circuit breaker permit of the current lease, handed back by the owner once the lease ends
+    private final AtomicReference<CircuitBreaker.Permit> permit = new AtomicReference<>();
     private volatile long openedAt;
     private volatile long lastUsedAt;
-    private volatile boolean inUse;
+    /**
+     * Lease state of the socket. It's IDLE while in the pool, LEASED once acquired, DRAINING while leftover input
+     * is being thrown away after release (only the releasing thread touches the socket then), and CLOSED for good.
+     * Transitions are done with CAS, so acquiring never waits for a release in progress; it just fails.
+     */
+    private enum LeaseState { IDLE, LEASED, DRAINING, CLOSED }
+    private final AtomicReference<LeaseState> state = new AtomicReference<>(LeaseState.IDLE);
+    //outcome of the current lease; only touched by whoever acquired the socket, and reset when it's acquired
+    private boolean ioFailed;
+    private long sentAt;
+    private long responseNanos = -1;
+    private int leases; //how many times socket was acquired; more than once means it idled in between
+    //what's left of the current response body: bytes by Content-Length, or -1 if it isn't known how it's framed
+    private long unreadBody = -1;
+    private boolean unreadChunks;
+    //decoder of the chunked body, which knows where in it we are; null if body was read around it, so it's lost
+    private ChunkedInputStream chunks;
+    private volatile long maxDrain = DEFAULT_MAX_DRAIN;
+    //what server said about keeping the connection open, in its latest response
+    private volatile long keepAliveTimeout = -1; //millis after the last response; -1 if server didn't say
+    private volatile long requestLimit = -1; //how many requests server answers on this connection; -1 if unlimited
+    private volatile boolean closeAfterResponse;
+    //request heads written, and response heads read, over the connection's lifetime; they differ while pipelining
+    private volatile long requests, responses;
 
     private volatile boolean readingChunks = false;
-    private Socket socket;
-    private InputStream input;
-    private PrintWriter writer;
-    private final Object acquireLock = new Object();
+    //set if socket was released while chunks were being read; whoever clears it finishes the release
+    private final AtomicBoolean releaseAfterChunks = new AtomicBoolean(false);
+    private final AtomicBoolean inputClosed = new AtomicBoolean(false);
+    //reads from the input in progress; read-ahead buffer can't go back to the pool until they're all done
+    private final AtomicInteger readers = new AtomicInteger();
+    private Transport transport;
+    private volatile int readTimeout; //millis; 0 if reads can block indefinitely
+    private BufferedSocketInput input;
+    //request head waiting to go out together with the body; pooled, read mode. Whoever takes it out (getAndSet)
+    //owns it, so a close() from another thread can't release it twice
+    private final AtomicReference<ByteBuffer> pendingOutput = new AtomicReference<>();
 
     /**
-     * Create a new socket to a given endpoint.
+     * Create a new socket to a given endpoint, using blocking I/O.
      * @param endpoint endpoint for the socket
      * @throws IOException
      */
     public HttpSocket(Endpoint endpoint) throws IOException {
-        if(!endpoint.isHttps())
-            socket = SocketFactory.getDefault().createSocket(endpoint.getAddress(), endpoint.getPort());
-        else {
-            SSLSocket sslSocket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(endpoint.getAddress(), endpoint.getPort());
-            sslSocket.setEnabledProtocols(new String[] {"TLSv1.2"});
-            sslSocket.startHandshake();
-            socket = sslSocket;
-            //this uses default certs for JVM and all default config; because this wasn't a requirement, I didn't bother
-            //much with it (and it was a shame to leave it unimplemented, seeing it's basically 3 LoC; might fail)
-        }
+        this(endpoint, TransportMode.BLOCKING);
+    }
+
+    /**
+     * Create a new socket to a given endpoint.
+     * @param endpoint endpoint for the socket
+     * @param mode how socket should do I/O; HTTPS endpoints always use {@link TransportMode#BLOCKING}
+     * @throws IOException
+     */
+    public HttpSocket(Endpoint endpoint, TransportMode mode) throws IOException {
+        this(endpoint, mode, null);
+    }
+
+    /**
+     * Create a new socket to a given endpoint.
+     * @param endpoint endpoint for the socket
+     * @param mode how socket should do I/O; HTTPS endpoints always use {@link TransportMode#BLOCKING}
+     * @param tls TLS config used if endpoint is HTTPS and doesn't have its own; if null, {@link TlsConfig#getDefault()}
+     *            is used
+     * @throws IOException
+     */
+    public HttpSocket(Endpoint endpoint, TransportMode mode, TlsConfig tls) throws IOException {
+        this(endpoint, mode, tls, null);
+    }
+
+    /**
+     * Create a new socket to a given endpoint.
+     * @param endpoint endpoint for the socket
+     * @param mode how socket should do I/O; HTTPS endpoints always use {@link TransportMode#BLOCKING}
+     * @param tls TLS config used if endpoint is HTTPS and doesn't have its own; if null, {@link TlsConfig#getDefault()}
+     *            is used
+     * @param options socket options used if endpoint doesn't have its own; if null, {@link SocketOptions#getDefault()}
+     *                is used
+     * @throws IOException
+     */
+    public HttpSocket(Endpoint endpoint, TransportMode mode, TlsConfig tls, SocketOptions options) throws IOException {
+        this.endpoint = endpoint;
+        if(endpoint.getTlsConfig() != null) tls = endpoint.getTlsConfig();
+        else if(tls == null) tls = TlsConfig.getDefault();
+        if(endpoint.getSocketOptions() != null) options = endpoint.getSocketOptions();
+        else if(options == null) options = SocketOptions.getDefault();
+        if(mode == TransportMode.NIO && !endpoint.isHttps())
+            transport = NioTransport.open(endpoint, options);
+        else
+            transport = BlockingTransport.open(endpoint, tls, options);
         this.openedAt = System.currentTimeMillis();
         this.lastUsedAt = System.currentTimeMillis();
 
-        input = socket.getInputStream();
-        //assuming everything is in UTF-8 (this assumption can be dropped if we re-wrap Socket I/O streams
-        //on each encoding change)
-        writer = new PrintWriter(socket.getOutputStream(), AUTOFLUSH, UTF_8);
+        readTimeout = SocketOptions.toMillis(options.getReadTimeout());
+        transport.setReadTimeout(readTimeout);
+        input = new BufferedSocketInput(transport.getInputStream());
+    }
+
+    /**
+     * @return endpoint this socket is connected to
+     */
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    void setOwner(Owner owner) {
+        this.owner = owner;
+    }
+
+    void setPermit(CircuitBreaker.Permit permit) {
+        this.permit.set(permit);
+    }
+
+    /**
+     * @return permit of the current lease, or null if there's none or it was already taken
+     */
+    CircuitBreaker.Permit takePermit() {
+        return permit.getAndSet(null);
+    }
+
+    /**
+     * Set how long reads from this socket can block waiting for data. If no data arrives in that time,
+     * {@link java.net.SocketTimeoutException} is thrown from the read method.
+     * @param timeout read timeout; zero means reads can block indefinitely
+     * @throws IOException if timeout cannot be set on the underlying socket
+     */
+    public void setReadTimeout(Duration timeout) throws IOException {
+        if(timeout.isNegative()) throw new IllegalArgumentException("Timeout can't be negative!");
+        int millis = (int)Math.min(Integer.MAX_VALUE, timeout.toMillis());
+        transport.setReadTimeout(millis);
+        readTimeout = millis;
+    }
+
+    /**
+     * @return how long reads can block, in milliseconds; 0 if indefinitely
+     */
+    int getReadTimeout() {
+        return readTimeout;
     }
 
     /**
@@ -63,10 +226,97 @@ public class HttpSocket implements Closeable {
      * @return idling duration
      */
     public Duration getIdlingTime() {
-        if(inUse) return Duration.ZERO;
+        if(state.get() == LeaseState.LEASED) return Duration.ZERO;
         return Duration.ofMillis(System.currentTimeMillis() - lastUsedAt);
     }
 
+    /**
+     * Set how much of the response body left unread can be thrown away on {@link #release()}. Draining a small body
+     * is cheaper than opening a new connection, but large ones are better cut off by closing the connection.
+     * @param bytes maximum number of bytes to drain; 0 means connection is closed whenever body is left unread
+     */
+    public void setMaxDrain(long bytes) {
+        if(bytes < 0) throw new IllegalArgumentException("Max drain can't be negative!");
+        this.maxDrain = bytes;
+    }
+
+    /**
+     * Tell the socket how long is the body of the response being read, once its headers are parsed.
+     * @param length body length in bytes
+     */
+    void expectBody(long length) {
+        unreadBody = length;
+        unreadChunks = false;
+        chunks = null;
+    }
+
+    /**
+     * Tell the socket that body of the response being read is chunked.
+     */
+    void expectChunkedBody() {
+        unreadBody = -1;
+        unreadChunks = true;
+        chunks = new ChunkedInputStream(input);
+    }
+
+    /**
+     * Tell the socket what server announced in Keep-Alive header of the latest response. Requests which were
+     * already sent after it (pipelined) count towards maxRequests.
+     * @param timeoutMillis how long server keeps the connection open while it idles, or -1 if it didn't say
+     * @param maxRequests how many more requests server accepts on this connection, or -1 if it didn't say
+     */
+    void keepAlive(long timeoutMillis, int maxRequests) {
+        if(timeoutMillis >= 0) keepAliveTimeout = timeoutMillis;
+        if(maxRequests >= 0) requestLimit = responses + maxRequests;
+    }
+
+    /**
+     * Tell the socket that the head of a (final, non-informative) response was read.
+     */
+    void responseArrived() {
+        responses++;
+    }
+
+    /**
+     * Count a request written directly, without {@link #writeHead(ByteBuffer)}, e.g. by a pipeline, unless server
+     * won't answer it.
+     * @return false if server already said it won't accept more requests on this connection, true otherwise
+     */
+    boolean countRequest() {
+        if(requestsLeft() == 0) return false;
+        requests++;
+        return true;
+    }
+
+    /**
+     * @return how many more requests can be sent on this connection, or {@link Long#MAX_VALUE} if server didn't set
+     * a limit
+     */
+    long requestsLeft() {
+        if(closeAfterResponse) return 0;
+        long limit = requestLimit;
+        return limit < 0 ? Long.MAX_VALUE : Math.max(0, limit - requests);
+    }
+
+    /**
+     * Tell the socket that server closes the connection after the current response (Connection: close), so it's
+     * closed on release instead of going back to the pool.
+     */
+    void closeAfterResponse() {
+        closeAfterResponse = true;
+    }
+
+    /**
+     * @return how long server keeps this connection open while it idles, in milliseconds, or -1 if it didn't say
+     */
+    long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    long getLastUsedAt() {
+        return lastUsedAt;
+    }
+
     /**
      * Get how old is this socket. Age is calculated as duration between the time it was opened and this moment.
      * @return socket age
@@ -77,16 +327,101 @@ public class HttpSocket implements Closeable {
 
     /**
      * Release the socket, allowing it to be used for other transactions. Releasing the socket does not close
-     * the underlying connection with the server.
+     * the underlying connection with the server. Whatever is left unread of the response is thrown away first; until
+     * that's done, socket can't be acquired again, but nobody trying to acquire it has to wait. If more than
+     * {@link #setMaxDrain(long) max drain} bytes of body are left, or the socket can't be left in a known state
+     * (an I/O operation failed, or server sent more than the response), connection is closed instead. It's also
+     * closed if server said it won't take any more requests on it (Connection: close, or Keep-Alive max running out).
      */
     public void release() {
-        synchronized (acquireLock) {
-            try { //attempt to read whatever's left in the stream after it's released
-                while(input.available() > 0) input.read();
+        if(readingChunks) { //chunks are read in background; we'll release once they're done
+            releaseAfterChunks.set(true);
+            if(readingChunks || !releaseAfterChunks.compareAndSet(true, false)) return;
+            //otherwise, reading finished in the meantime and left the release to us
+        }
+        boolean failed = ioFailed;
+        long response = responseNanos;
+        if(!state.compareAndSet(LeaseState.LEASED, LeaseState.DRAINING)) return; //not acquired, or closed
+        if(failed || willClose() || !drain()) {
+            try {
+                close(); //the CAS below fails, so we finish up as if closed while draining
             } catch (IOException ignored) {
             }
-            inUse = false;
-            lastUsedAt = System.currentTimeMillis();
+        }
+        BufferPool.getDefault().release(pendingOutput.getAndSet(null)); //request was abandoned before it was sent
+        lastUsedAt = System.currentTimeMillis();
+        boolean released = state.compareAndSet(LeaseState.DRAINING, LeaseState.IDLE);
+        if(!released) closeInput(); //closed while we were draining; input was ours until now
+
+        Owner owner = this.owner;
+        if(owner == null) return;
+        owner.onLeaseEnded(this, failed, response);
+        if(released) owner.onReleased(this);
+    }
+
+    /**
+     * Throws away whatever's left of the response body, if it's at most max drain bytes. Waits for the rest of the
+     * body to arrive, up to the read timeout. If body length isn't known, throws away only what has already arrived.
+     * @return whether the socket is at the start of the next response, so it can be reused
+     */
+    private boolean drain() {
+        if(!isBodyFramed()) {
+            try {
+                for(int available; (available = input.available()) > 0; )
+                    if(input.skip(available) <= 0) break;
+            } catch (IOException ignored) { //it'll be noticed next time socket is used, or when it's checked while idle
+            }
+            return true;
+        }
+        return skipBody() && input.buffered() == 0; //anything more wasn't asked for; we'd mistake it for the next response
+    }
+
+    /**
+     * @return whether it's known where the body of the response being read ends (by Content-Length or chunks)
+     */
+    boolean isBodyFramed() {
+        return unreadChunks || unreadBody >= 0;
+    }
+
+    /**
+     * @return whether server said it closes the connection after the current response
+     */
+    boolean willClose() {
+        long limit = requestLimit;
+        return closeAfterResponse || (limit >= 0 && responses >= limit);
+    }
+
+    /**
+     * Throws away whatever's left of the response body, if it's at most max drain bytes, leaving the socket at the
+     * start of whatever comes next. Waits for the rest of the body to arrive, up to the read timeout. Chunked body
+     * is skipped from wherever its reader stopped; if it was read past the reader, we don't know where we are in it.
+     * @return false if there's more than max drain bytes left, body length isn't known, or reading failed
+     */
+    boolean skipBody() {
+        try {
+            if(unreadChunks) {
+                ChunkedInputStream chunks = this.chunks;
+                if(chunks == null) return false;
+                long budget = maxDrain;
+                while(chunks.hasMoreChunks()) {
+                    if(chunks.getRemaining() > budget) return false;
+                    budget -= chunks.getRemaining();
+                    while(chunks.getRemaining() > 0)
+                        if(chunks.skip(chunks.getRemaining()) <= 0) return false;
+                }
+                unreadChunks = false;
+                this.chunks = null;
+                return true;
+            }
+            if(unreadBody < 0 || unreadBody > maxDrain) return false;
+            while(unreadBody > 0) {
+                long skipped = input.skip(unreadBody); //blocks until something arrives
+                if(skipped <= 0) return false; //closed by server
+                unreadBody -= skipped;
+            }
+            return true;
+        } catch (IOException | RuntimeException e) { //e.g. chunk size isn't a number
+            return false;
         }
     }
 
@@ -97,39 +432,232 @@ public class HttpSocket implements Closeable {
      */
     //similar to read-modify-write; methods like "isAcquired" are inherently unsafe
     public boolean acquireIfIdle() {
-        synchronized (acquireLock) {
-            if(inUse || isClosed()) return false;
-            inUse = true;
+        if(isClosed() || !state.compareAndSet(LeaseState.IDLE, LeaseState.LEASED)) return false;
+        ioFailed = false;
+        sentAt = 0;
+        responseNanos = -1;
+        leases++;
+        unreadBody = -1;
+        unreadChunks = false;
+        chunks = null;
+        return true;
+    }
+
+    /**
+     * Give back a connection acquired only to be inspected (see {@link #isStale()}), without counting it as used:
+     * idling time keeps running and the owner isn't notified.
+     */
+    void unclaim() {
+        state.compareAndSet(LeaseState.LEASED, LeaseState.IDLE);
+    }
+
+    /**
+     * Check whether an idle connection can no longer be used: it's closed, the server has closed its side, or the
+     * server has sent something nobody asked for. Caller must have acquired the connection, so nobody else reads
+     * from it in the meantime. Doesn't block, except for TLS connections (see {@link Transport#isStale()}).
+     * @return true if connection should be thrown away
+     */
+    boolean isStale() {
+        if(isClosed()) return true;
+        try {
+            return input.buffered() > 0 || transport.isStale();
+        } catch (IOException e) {
             return true;
         }
     }
 
+    /**
+     * Close a connection which failed before anything of the response arrived, if it was used before and the failure
+     * looks like the server closed it while it was idling (end of stream, or connection reset), so the request can be
+     * sent again on another connection. That isn't counted as a failure of the endpoint (e.g. by its
+     * {@link CircuitBreaker}). Timeouts aren't replayed: server got the request and is slow, or isn't there at all.
+     * @param failure exception the request failed with
+     * @return true if connection was closed; false if it was opened for this request, response has started arriving
+     *         or failure isn't a sign of a stale connection, in which case it's left alone
+     */
+    boolean closeIfReplayable(IOException failure) {
+        if(!isStaleSignal(failure)) return false;
+        if(state.get() != LeaseState.LEASED || !wasReused() || responseNanos >= 0) return false;
+        ioFailed = false;
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+        return true;
+    }
+
+    //what we get when writing to or reading from a connection the server has closed; message is all there is to
+    //tell a reset apart from other socket errors (it's a plain IOException with NIO)
+    private static boolean isStaleSignal(IOException e) {
+        if(e instanceof EOFException) return true;
+        if(e instanceof SocketTimeoutException || e.getMessage() == null) return false;
+        String message = e.getMessage();
+        return message.contains("Connection reset") || message.contains("Broken pipe");
+    }
+
+    /**
+     * @return whether connection was acquired before the current lease, i.e. it idled in the pool in between
+     */
+    boolean wasReused() {
+        return leases > 1;
+    }
+
     private void ensureAcquired() {
-        if(!inUse) throw new IllegalStateException("Cannot print to idling connection!");
+        if(state.get() != LeaseState.LEASED) throw new IllegalStateException("Cannot print to idling connection!");
+    }
+
+    //bookkeeping of the lease outcome, reported to the owner once the socket is released
+    private void sent() {
+        if(responseNanos < 0) sentAt = System.nanoTime();
+    }
+
+    private void received() {
+        if(responseNanos < 0 && sentAt != 0) responseNanos = System.nanoTime() - sentAt;
+    }
+
+    IOException failed(IOException e) {
+        ioFailed = true;
+        return e;
     }
 
     /**
-     * Print a string to the socket; this sends data to server. This call is buffered, so it's not guaranteed
-     * that bytes will be sent the same moment.
-     * @param s data to be sent
+     * Print a string to the socket; this sends data to server. This call is buffered: bytes are sent together with
+     * the next write, or on {@link #flush()} or the first read, whichever comes first.
+     * @param s data to be sent, encoded as UTF-8
      */
     public void print(String s) throws IOException {
         ensureAcquired();
-        writer.print(s);
-        if(writer.checkError()) throw new IOException("Error while writing data to socket"); //these APIs are awful
+        byte[] bytes = s.getBytes(UTF_8);
+        ByteBuffer buffer = BufferPool.getDefault().lease(bytes.length);
+        buffer.put(bytes).flip();
+        queue(buffer);
         lastUsedAt = System.currentTimeMillis();
     }
 
     /**
-     * Write raw bytes to the socket; this sends bytes to the server and flushes the connection.
+     * Queue the request head, so it goes out in the same write as the body (or, if there's no body, right before
+     * the response is read). Takes ownership of the buffer; it's returned to the pool once it's sent.
+     * @param head encoded head, leased from the default {@link BufferPool}, in read mode
+     * @see RequestEncoder
+     */
+    void writeHead(ByteBuffer head) {
+        ensureAcquired();
+        unreadBody = -1;
+        unreadChunks = false;
+        chunks = null;
+        requests++; //in case server doesn't repeat Keep-Alive in every response
+        queue(head);
+    }
+
+    private void queue(ByteBuffer bytes) {
+        ByteBuffer pending = pendingOutput.getAndSet(null);
+        if(pending != null) {
+            ByteBuffer merged = BufferPool.getDefault().lease(pending.remaining() + bytes.remaining());
+            merged.put(pending).put(bytes).flip();
+            BufferPool.getDefault().release(pending);
+            BufferPool.getDefault().release(bytes);
+            bytes = merged;
+        }
+        pendingOutput.set(bytes);
+        //closed in the meantime: close() might have looked before we set it, so make sure it doesn't leak
+        if(state.get() == LeaseState.CLOSED) BufferPool.getDefault().release(pendingOutput.getAndSet(null));
+    }
+
+    private void flushPending() throws IOException {
+        ByteBuffer pending = pendingOutput.getAndSet(null);
+        if(pending == null) return;
+        try {
+            transport.write(new ByteBuffer[] {pending});
+            sent();
+        } catch (IOException e) {
+            throw failed(e);
+        } finally {
+            BufferPool.getDefault().release(pending);
+        }
+    }
+
+    /**
+     * Write raw bytes to the socket; this sends bytes to the server and flushes the connection. Anything queued
+     * before (e.g. request head) goes out in the same write.
      * @param bytes data to be sent
      * @throws IOException
      */
     public void write(byte[] bytes) throws IOException {
+        write(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Write all buffers to the socket using a single gathering write, preceded by anything queued before (e.g.
+     * request head). Buffers are consumed, but not released.
+     * @param buffers data to be sent
+     * @throws IOException
+     */
+    void write(ByteBuffer... buffers) throws IOException {
+        ensureAcquired();
+        ByteBuffer pending = pendingOutput.getAndSet(null);
+        try {
+            if(pending == null) {
+                transport.write(buffers);
+            } else {
+                ByteBuffer[] all = new ByteBuffer[buffers.length + 1];
+                all[0] = pending;
+                System.arraycopy(buffers, 0, all, 1, buffers.length);
+                transport.write(all);
+            }
+            sent();
+        } catch (IOException e) {
+            throw failed(e);
+        } finally {
+            BufferPool.getDefault().release(pending);
+        }
+        lastUsedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Write the body together with anything queued before (e.g. request head), without parking the calling thread
+     * if the socket can't take it all right away (see {@link Transport#writeLater(ByteBuffer[], Consumer)}).
+     * @param body data to be sent, or null if there's nothing but the queued bytes
+     * @param done run once everything is written, with null, or with the exception if writing failed; it can be run
+     *             on an arbitrary thread, so it shouldn't block
+     */
+    void writeLater(byte[] body, Consumer<IOException> done) {
         ensureAcquired();
-        writer.flush();
-        socket.getOutputStream().write(bytes);
-        socket.getOutputStream().flush();
+        ByteBuffer pending = pendingOutput.getAndSet(null);
+        ByteBuffer[] buffers;
+        if(pending == null && body == null) {
+            done.accept(null);
+            return;
+        }
+        if(pending == null) buffers = new ByteBuffer[] {ByteBuffer.wrap(body)};
+        else if(body == null) buffers = new ByteBuffer[] {pending};
+        else buffers = new ByteBuffer[] {pending, ByteBuffer.wrap(body)};
+        transport.writeLater(buffers, e -> {
+            BufferPool.getDefault().release(pending);
+            if(e == null) sent();
+            else failed(e);
+            lastUsedAt = System.currentTimeMillis();
+            done.accept(e);
+        });
+    }
+
+    /**
+     * Send the whole file to the server. File is streamed from disk (and, for plain HTTP, passed straight from the
+     * file to the socket by the kernel), so heap usage doesn't depend on file size.
+     * @param file file to send
+     * @throws IOException if file cannot be read or I/O error occurs
+     */
+    public void sendFile(File file) throws IOException {
+        ensureAcquired();
+        flushPending();
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            try {
+                transport.sendFile(channel, 0, channel.size());
+            } catch (IOException e) {
+                throw failed(e);
+            }
+            sent();
+        }
+        lastUsedAt = System.currentTimeMillis();
     }
 
     /**
@@ -137,8 +665,7 @@ public class HttpSocket implements Closeable {
      */
     public void flush() throws IOException {
         ensureAcquired();
-        writer.flush();
-        if(writer.checkError()) throw new IOException("Error while flushing the connection");
+        flushPending();
         lastUsedAt = System.currentTimeMillis();
     }
 
@@ -150,35 +677,120 @@ public class HttpSocket implements Closeable {
     public int read() throws IOException {
         ensureAcquired();
         if(readingChunks) return -1;
+        flushPending();
         lastUsedAt = System.currentTimeMillis();
-        return input.read();
+        chunks = null; //reading around the decoder, if body is chunked
+        int b;
+        beginRead();
+        try {
+            b = input.read();
+        } catch (IOException e) {
+            throw failed(e);
+        } finally {
+            endRead();
+        }
+        if(b >= 0 && unreadBody > 0) unreadBody--;
+        received();
+        return b;
     }
 
     /**
      * Read a line from the server. Lines are terminated with <em>either</em> CRLF or just LF. This method should not
-     * be used for reading body of the response.
+     * be used for reading body of the response. It blocks until the whole line is received or read timeout passes.
      * @return next line, or empty string if there are none.
+     * @throws java.io.EOFException if server closed the connection before sending anything
      * @throws IOException
      */
     //we're skirting the spec here, because it specifies only CRLF as newline
-    public String readLine() throws IOException { //avoiding BufferedReader because I can't read bytes with it
+    public String readLine() throws IOException {
         ensureAcquired();
-        if(readingChunks || socket.isClosed()) return "";
-        while (input.available() == 0);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        char curr, next = (char)input.read();
-        do {
-            if(socket.isClosed()) break;
-            while (input.available() == 0);
-            curr = next;
-            next = (char)input.read();
-            if(((curr != '\r' || next != '\n') && curr != '\n')) out.write(curr);
-        } while((curr != '\r' || next != '\n') && curr != '\n');
-        String line = out.toString(UTF_8);
+        if(readingChunks || transport.isClosed()) return "";
+        flushPending();
+        chunks = null;
+        String line;
+        beginRead();
+        try {
+            line = input.readLine();
+        } catch (IOException e) {
+            throw failed(e);
+        } finally {
+            endRead();
+        }
+        if(line == null) throw failed(new EOFException("Connection closed by server"));
+        received();
+        lastUsedAt = System.currentTimeMillis();
+        return line;
+    }
+
+    /**
+     * Read a line like {@link #readLine()} does, but only if it has fully arrived. Otherwise, callback is run once
+     * more input arrives, and caller should try again then. Meant for non-blocking transports; with blocking ones,
+     * this simply blocks until the line arrives.
+     * @param onReadable run once, on an arbitrary thread, when more input arrives; it shouldn't block
+     * @return next line, or null if it hasn't arrived yet, in which case onReadable is run later
+     * @throws java.io.EOFException if server closed the connection before the line arrived
+     * @throws IOException
+     */
+    String readLineOrWait(Runnable onReadable) throws IOException {
+        ensureAcquired();
+        if(!transport.isNonBlocking()) return readLine();
+        chunks = null;
+        String line;
+        beginRead();
+        try {
+            while((line = input.readLineIfReady()) == null) {
+                if(transport.whenReadable(onReadable)) return null;
+                //otherwise, either more arrived in the meantime, or connection is done and this won't block
+                if(input.available() == 0) {
+                    line = input.readLine();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw failed(e);
+        } finally {
+            endRead();
+        }
+        if(line == null) throw failed(new EOFException("Connection closed by server"));
+        received();
         lastUsedAt = System.currentTimeMillis();
         return line;
     }
 
+    /**
+     * Read ahead the rest of the response body, if it's small enough to be buffered, so that it can be read
+     * without blocking. Otherwise, callback is run once more input arrives, and caller should try again then. Does
+     * nothing with blocking transports, or if the body is too large or its length isn't known.
+     * @param onReadable run once, on an arbitrary thread, when more input arrives; it shouldn't block
+     * @return true if body can be read now (or won't arrive at all), false if onReadable is run later
+     * @throws IOException
+     */
+    boolean bufferBodyOrWait(Runnable onReadable) throws IOException {
+        ensureAcquired();
+        long length = unreadBody;
+        if(!transport.isNonBlocking() || length <= 0 || length > input.capacity()) return true;
+        beginRead();
+        try {
+            while(!input.bufferIfReady((int)length)) {
+                if(transport.whenReadable(onReadable)) return false;
+                if(input.available() == 0) return true; //connection is done; whoever reads the body finds out
+            }
+        } catch (IOException e) {
+            throw failed(e);
+        } finally {
+            endRead();
+        }
+        return true;
+    }
+
+    /**
+     * @return whether this socket's transport waits for input without holding a thread; see
+     * {@link TransportMode#NIO}
+     */
+    boolean isNonBlocking() {
+        return transport.isNonBlocking();
+    }
+
     /**
      * If there's more input waiting to be read and chunk reading is not in progress. Input not being ready does
      * <em>not</em> imply there won't be more data in future on this same socket.
@@ -187,7 +799,9 @@ public class HttpSocket implements Closeable {
      */
     public boolean inputReady() throws IOException {
         ensureAcquired();
-        return !socket.isClosed() && !readingChunks && input.available() != 0;
+        if(transport.isClosed() || readingChunks) return false;
+        flushPending();
+        return input.available() != 0;
     }
 
     /**
@@ -200,75 +814,146 @@ public class HttpSocket implements Closeable {
      */
     public int read(byte[] buf, int offset, int len) throws IOException {
         ensureAcquired();
-        if(readingChunks || socket.isClosed()) return 0;
-        int ret = input.read(buf, offset, len);
+        if(readingChunks || transport.isClosed()) return 0;
+        flushPending();
+        chunks = null;
+        int ret;
+        beginRead();
+        try {
+            ret = input.read(buf, offset, len);
+        } catch (IOException e) {
+            throw failed(e);
+        } finally {
+            endRead();
+        }
+        if(ret > 0 && unreadBody > 0) unreadBody = Math.max(0, unreadBody - ret);
+        received();
         lastUsedAt = System.currentTimeMillis();
         return ret;
     }
 
     /**
      * Assume a chunked response and read all chunks at once. This method will stall until all chunks
-     * are received.
+     * are received. Body can be at most {@link ChunkAggregator#DEFAULT_MAX_SIZE} bytes long.
      * @return
-     * @throws IOException if I/O exception occurs on underlying socket or chunks are malformed
+     * @throws IOException if I/O exception occurs on underlying socket, chunks are malformed or body is too large
      */
     public byte[] readAllChunks() throws IOException {
+        try(ChunkAggregator body = aggregateChunks(ChunkAggregator.DEFAULT_MAX_SIZE)) {
+            return body.toByteArray();
+        }
+    }
+
+    /**
+     * Assume a chunked response and read all chunks into an aggregator. Chunk data is read straight into pooled
+     * buffers, so it can be consumed as an array, a buffer or a stream without copying it around. This method will
+     * stall until all chunks are received. Returned aggregator must be closed by the caller.
+     * @param maxSize maximum size of the body, in bytes
+     * @return aggregator holding the whole body
+     * @throws IOException if I/O exception occurs on underlying socket, chunks are malformed or body is larger than
+     *                     maxSize
+     */
+    public ChunkAggregator aggregateChunks(long maxSize) throws IOException {
         ensureAcquired();
+        flushPending();
+        beginRead();
         readingChunks = true;
-        ChunkedInputStream in = new ChunkedInputStream(input);
-
-        List<Byte> body = new ArrayList<>(1024);
-        while(in.hasMoreChunks()) {
-            byte[] chunk = in.readChunk();
-            Utils.append(body, chunk);
+        unreadChunks = false; //read to the end, or the socket is closed on release
+        ChunkedInputStream in = chunks != null ? chunks : new ChunkedInputStream(input); //continue where it stopped
+        chunks = null;
+        ChunkAggregator body = new ChunkAggregator(maxSize);
+        try {
+            while(in.hasMoreChunks())
+                body.readFrom(in, in.getRemaining());
+        } catch (IOException e) {
+            body.close();
+            throw failed(e);
+        } catch (RuntimeException e) {
+            body.close();
+            ioFailed = true; //we don't know where in the body we stopped
+            throw e;
+        } finally {
+            in.close();
+            readingChunks = false;
+            endRead();
         }
-        in.close();
-        readingChunks = false;
-        return Utils.unbox(body.toArray(new Byte[]{}));
+        return body;
     }
 
     /**
      * Reads chunks in background, and informs the caller about the progress using callbacks executed
-     * on the given executor.
+     * on the given executor. This method doesn't block: chunks are read on a shared scheduler (see
+     * {@link ReaderScheduler}). With {@link TransportMode#NIO}, the number of threads doesn't grow with the number of
+     * chunked responses. With blocking transport (the default), each response being read holds a thread until it
+     * ends, so at most {@link #setMaxBlockingChunkReaders(int) max blocking chunk readers} responses can be read this
+     * way at once, across all sockets. Once they're all taken, reading fails right away with an IOException (passed
+     * to {@link ChunkCallbacks#onExceptionThrown(IOException)}); nothing is read then, so the body can still be read
+     * on the calling thread, e.g. using {@link #aggregateChunks(long)}. Use NIO for many concurrent streams.
+     * While chunks are being read, this socket can't be read from, and releasing it is postponed until reading is
+     * done.
      * @param callbacks callbacks used to report back about the progress
      * @param executor executor on which callbacks are executed. If null, callbacks are executed
      *                 on the background thread
+     * @return future completed after the final callback (end of transfer or exception) has been executed
      */
-    public void readChunks(ChunkCallbacks callbacks, Executor executor) {
+    public CompletableFuture<Void> readChunks(ChunkCallbacks callbacks, Executor executor) {
+        ensureAcquired();
+        try {
+            flushPending();
+        } catch (IOException e) {
+            if(executor != null) executor.execute(() -> callbacks.onExceptionThrown(e));
+            else callbacks.onExceptionThrown(e);
+            return CompletableFuture.failedFuture(e);
+        }
         readingChunks = true;
-        ExecutorService background = Executors.newSingleThreadExecutor();
-        Future<?> task = background.submit(() -> {
-            ChunkedInputStream in = new ChunkedInputStream(input);
-            try {
-                while (in.hasMoreChunks()) {
-                    byte[] chunk = in.readChunk();
-                    Runnable received = () -> callbacks.onChunkReceived(chunk);
-                    if (executor != null) executor.execute(received);
-                    else received.run();
-                }
-                Runnable end = callbacks::onEndTransfer;
-                if (executor != null) executor.execute(end);
-                else end.run();
-            } catch (IOException e) {
-                Runnable exception = () -> callbacks.onExceptionThrown(e);
-                if (executor != null) executor.execute(exception);
-                else exception.run();
-            }
-        });
+        unreadChunks = false;
+        chunks = null;
+        return new ChunkReader(input, transport, callbacks, executor, this::finishReadingChunks).start();
+    }
+
+    private void finishReadingChunks(boolean failed) {
+        if(failed) ioFailed = true; //we don't know where in the body we stopped, so connection is closed on release
+        readingChunks = false;
+        if(releaseAfterChunks.compareAndSet(true, false)) release();
+        if(state.get() == LeaseState.CLOSED) closeInput(); //closed while we were reading; buffer couldn't be returned then
+    }
+
+    //marks a read from the input as in progress, unless socket is already closed (and the buffer possibly returned)
+    private void beginRead() throws SocketException {
+        readers.incrementAndGet();
+        if(state.get() != LeaseState.CLOSED) return; //close() sees us, if it comes later
+        endRead();
+        throw new SocketException("Socket is closed");
+    }
+
+    //whoever finishes the last read on a closed socket returns the buffer; close() couldn't, while we were reading
+    private void endRead() {
+        if(readers.decrementAndGet() == 0 && state.get() == LeaseState.CLOSED) closeInput();
+    }
+
+    //returns read-ahead buffer to the pool, exactly once
+    private void closeInput() {
+        if(!inputClosed.compareAndSet(false, true)) return;
         try {
-            task.get();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+            input.close();
+        } catch (IOException ignored) {
         }
     }
 
+    /**
+     * @return TLS session of this socket (e.g. to check negotiated protocol or ALPN result), or null for plain HTTP
+     */
+    public SSLSession getTlsSession() {
+        return transport.getTlsSession();
+    }
+
     /**
      * Returns whether the underlying (and, by extension, this) socket is closed. You cannot write to nor read from
      * closed sockets.
      * @return true if socket is closed, false otherwise
      */
     public boolean isClosed() {
-        return socket.isClosed();
+        return transport.isClosed();
     }
 
     /**
@@ -278,8 +963,23 @@ public class HttpSocket implements Closeable {
      */
     @Override
     public void close() throws IOException {
-        release();
-        socket.close();
+        LeaseState previous = state.getAndSet(LeaseState.CLOSED);
+        if(previous == LeaseState.CLOSED) return;
+        boolean reading = readingChunks; //read after closing, so either we or the reader see the other
+        Owner owner = this.owner;
+        if(previous == LeaseState.LEASED) {
+            BufferPool.getDefault().release(pendingOutput.getAndSet(null));
+            lastUsedAt = System.currentTimeMillis();
+            if(owner != null) owner.onLeaseEnded(this, ioFailed, responseNanos);
+        }
+        try {
+            transport.close(); //first, so that anyone blocked reading wakes up
+        } finally {
+            //returns read-ahead buffer to the pool; if someone's reading (chunks in background, draining, or a plain
+            //read from another thread), they still write into it, so they close the input once they notice we're closed
+            if(!reading && previous != LeaseState.DRAINING && readers.get() == 0) closeInput();
+        }
+        if(owner != null) owner.onClosed(this);
     }
 
     /**
@@ -297,6 +997,12 @@ public class HttpSocket implements Closeable {
          */
         void onEndTransfer();
 
+        /**
+         * Called for each trailer (header sent after the last chunk), before {@link #onEndTransfer()}.
+         * @param trailer whole trailer line, e.g. "Expires: Wed, 21 Oct 2015 07:28:00 GMT"
+         */
+        default void onTrailer(String trailer) {}
+
         /**
          * Called if I/O exception occurred
          * @param ex thrown exception
@@ -5,9 +5,11 @@ import rs.lukaj.httpclient.Utils;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static rs.lukaj.httpclient.connections.HttpResponse.Code.*;
@@ -19,6 +21,8 @@ import static rs.lukaj.httpclient.connections.HttpResponse.Code.*;
  */
 //similar role to HttpURLConnection in standard library, but more configurable
 public class HttpTransaction implements Closeable {
+    private static final byte[] CRLF = {'\r', '\n'};
+
     private ConnectionPool connectionPool;
     private HttpRequest request;
     private HttpCache cache = new FifoHttpCache();
@@ -38,6 +42,7 @@ public class HttpTransaction implements Closeable {
     private int currRedirects, currRepeats;
     private boolean disconnectOnClose = false;
     private boolean repeatOnNotModified = true;
+    private boolean retryOnStaleConnection = true;
     private boolean closed = false;
 
     /**
@@ -139,6 +144,19 @@ public class HttpTransaction implements Closeable {
         return this;
     }
 
+    /**
+     * Should idempotent requests (GET, HEAD, PUT, DELETE, OPTIONS, TRACE) be sent again on another connection if a
+     * pooled connection fails before anything of the response arrives. That usually means server has closed the
+     * connection while it was idling, so the request most likely never reached it. Requests on connections opened
+     * for them aren't retried.
+     * @param retryOnStaleConnection whether requests should be retried on stale connections
+     * @return this, to allow chaining
+     */
+    public HttpTransaction setRetryOnStaleConnection(boolean retryOnStaleConnection) {
+        this.retryOnStaleConnection = retryOnStaleConnection;
+        return this;
+    }
+
     /**
      * Get headers sent with this request. Modifying the headers will have impact on the request.
      * @return headers used with this request
@@ -204,9 +222,9 @@ public class HttpTransaction implements Closeable {
             @Override
             public void sendChunk(byte[] chunk) throws IOException {
                 byte[] compressed = chunk.length == 0 ? chunk : Utils.compress(chunk, getHeaders().get("Content-Encoding"));
-                socket.write((Integer.toHexString(compressed.length) + "\r\n").getBytes(UTF_8));
-                socket.write(compressed);
-                socket.write("\r\n".getBytes(UTF_8));
+                byte[] size = (Integer.toHexString(compressed.length) + "\r\n").getBytes(UTF_8);
+                //one write per chunk; the first one also carries the request head
+                socket.write(ByteBuffer.wrap(size), ByteBuffer.wrap(compressed), ByteBuffer.wrap(CRLF));
             }
 
             @Override
@@ -227,7 +245,8 @@ public class HttpTransaction implements Closeable {
     /**
      * Make a new request on the passed executor. Waiting for a connection from the connection pool is done on the
      * background thread. This method sends data over the network. It returns immediately after verifying the
-     * request is in valid state. Use the callbacks to parse the response.
+     * request is in valid state. Use the callbacks to parse the response. With {@link TransportMode#NIO}, no thread
+     * waits for the server while the request is written and the response head (and a small body) is read.
      * @param method http method
      * @param target url to which request is made
      * @param callbacks callback to call when getting a response
@@ -236,50 +255,38 @@ public class HttpTransaction implements Closeable {
     public void makeRequestLater(Http.Verb method, String target, Callbacks callbacks, Executor executor) {
         ensureOpen();
         used = true;
-        try { verifyRequest(); } catch (Throwable t) { callbacks.onExceptionThrown(t); }
+        currRedirects = 0;
+        currRepeats = 0;
+        try { verifyRequest(); } catch (Throwable t) { callbacks.onExceptionThrown(t); return; }
+        makeRequestLater(method, target, null, callbacks, executor);
+    }
+
+    //async counterpart of makeRequest(Http.Verb, String, HttpSocket); same redirect and caching rules apply
+    private void makeRequestLater(Http.Verb method, String target, HttpSocket socket, Callbacks callbacks,
+                                  Executor executor) {
         try {
             byte[] body = makeBody(method, target);
             if(requestStartTime == -1) requestStartTime = System.currentTimeMillis();
-            request.connectLater(connectionPool, new ConnectionPool.Callbacks() {
+            ConnectionPool.Callbacks connected = new ConnectionPool.Callbacks() {
                 @Override
                 public void onConnectionObtained(HttpSocket connection) {
-                    socket = connection;
-                    if(body != null) {
+                    HttpTransaction.this.socket = connection;
+                    exchangeLater(body, executor, (response, failure) -> {
+                        if(failure instanceof TimeoutException) {
+                            callbacks.onTimeout();
+                            return;
+                        }
+                        if(failure != null) {
+                            callbacks.onExceptionThrown(failure);
+                            return;
+                        }
                         try {
-                            socket.write(body);
-
-                            response = HttpResponse.from(socket, request).setCache(cache)
-                                    .setCachingPolicy(cachingPolicy).parseResponse();
-                            int responseCode = response.getStatus().responseCode;
-                            if(responseCode == MOVED_PERMANENTLY.code || responseCode == FOUND.code || responseCode == SEE_OTHER.code
-                                    || responseCode == TEMP_REDIRECT.code) {
-                                String redirectUrl = getRedirectUrl();
-                                response.getBodyString();
-                                if(redirectUrl.startsWith("/")) { //fixme I don't yet know what, but something _is_ wrong here
-                                    String[] proto = target.split("://", 2);
-                                    redirectUrl = proto[0] + "://" + proto[1].split("/", 2)[0] + redirectUrl;
-                                }
-                                HttpRequest.create(method, redirectUrl).connectNow(connection);
-                                //we're not waiting for ConnectionPool here, so not counting that time
-                                onConnectionObtained(connection);
-                            }
-                            if(responseCode == NOT_MODIFIED.code) {
-                                HttpResponse response = getCachedResponse();
-                                if(response != null) callbacks.onResponse(response);
-                                else if(repeatOnNotModified) {
-                                    if((response = prepareRepeat()) != null) callbacks.onResponse(response);
-                                    HttpSocket newConnection = HttpRequest.create(method, target).connectNow(connection);
-                                    onConnectionObtained(newConnection);
-                                }
-                            }
-                            setShouldDisconnect();
-                            cache();
-                            //some other cases which require special handling... ?
-                            callbacks.onResponse(response);
+                            HttpTransaction.this.response = response;
+                            onExchanged(method, target, callbacks, executor);
                         } catch (Throwable e) {
                             callbacks.onExceptionThrown(e);
                         }
-                    }
+                    });
                 }
 
                 @Override
@@ -291,11 +298,49 @@ public class HttpTransaction implements Closeable {
                 public void onExceptionThrown(IOException ex) {
                     callbacks.onExceptionThrown(ex);
                 }
-            }, executor);
+            };
+            if(socket == null) {
+                request.connectLater(connectionPool, connected, executor);
+            } else {
+                request.connectNow(socket);
+                executor.execute(() -> connected.onConnectionObtained(socket));
+            }
         } catch (IOException e) {
             executor.execute(() -> callbacks.onExceptionThrown(e));
         }
+    }
 
+    private void onExchanged(Http.Verb method, String target, Callbacks callbacks, Executor executor)
+            throws IOException {
+        int responseCode = response.getStatus().responseCode;
+        if(responseCode == MOVED_PERMANENTLY.code || responseCode == FOUND.code || responseCode == SEE_OTHER.code
+                || responseCode == TEMP_REDIRECT.code) {
+            String redirectUrl = getRedirectUrl();
+            response.getBodyString();
+            if(redirectUrl.startsWith("/")) { //fixme I don't yet know what, but something _is_ wrong here
+                String[] proto = target.split("://", 2);
+                redirectUrl = proto[0] + "://" + proto[1].split("/", 2)[0] + redirectUrl;
+                makeRequestLater(method, redirectUrl, socket, callbacks, executor);
+            } else {
+                makeRequestLater(method, redirectUrl, null, callbacks, executor);
+            }
+            return;
+        }
+        if(cachingPolicy.shouldLookInCache(request, response) && responseCode == NOT_MODIFIED.code) {
+            HttpResponse response = getCachedResponse();
+            if(response != null) {
+                callbacks.onResponse(response);
+                return;
+            } else if(repeatOnNotModified) {
+                if((response = prepareRepeat()) != null) callbacks.onResponse(response);
+                else makeRequestLater(method, target, socket, callbacks, executor);
+                return;
+            }
+        }
+        setShouldDisconnect();
+        cache();
+        //some other cases which require special handling... ?
+        callbacks.onResponse(response);
     }
 
     //worst case of code duplication here afaik
@@ -309,13 +354,14 @@ public class HttpTransaction implements Closeable {
         else
             socket = request.connectNow(socket);
         this.socket = socket;
-        if(body != null) socket.write(body);
         HttpResponse cached = null;
         if(cachingPolicy.shouldLookInCache(request)) cached = getCachedResponse();
         if(cached != null) {
+            writeBody(body);
             response = cached;
         } else {
-            response = HttpResponse.from(socket, request).setCache(cache).setCachingPolicy(cachingPolicy).parseResponse();
+            response = exchange(body);
+            socket = this.socket; //might've been replaced by a retry
         }
 
         int responseCode = response.getStatus().responseCode;
@@ -357,11 +403,12 @@ public class HttpTransaction implements Closeable {
         if(bodyFile != null && !bodyFile.exists()) throw new InvalidRequestException("File doesn't exist!");
     }
 
+    //files aren't read here; they're streamed straight from disk in writeBody, so only their length is needed
     private byte[] makeBody(Http.Verb method, String target) throws IOException {
         byte[] body = null;
         if(bodyStr != null) body = Utils.compress(bodyStr.getBytes(UTF_8), getHeaders().getHeader("Content-Encoding"));
-        if(bodyFile != null) body = Files.readAllBytes(bodyFile.toPath());
         if(body != null) requestHeaders.setContentLength(body.length);
+        else if(bodyFile != null) requestHeaders.setContentLength(bodyFile.length());
         else requestHeaders.setContentLength(0);
         request = HttpRequest.create(method, target)
                 .setHeaders(requestHeaders)
@@ -369,6 +416,96 @@ public class HttpTransaction implements Closeable {
         return body;
     }
 
+    //sends the body and parses the response; if a pooled connection turns out to have been closed by the server
+    //before anything of the response arrives, idempotent requests are sent again on another connection
+    private HttpResponse exchange(byte[] body) throws IOException, TimeoutException {
+        while(true) {
+            try {
+                writeBody(body);
+                return HttpResponse.from(socket, request).setCache(cache).setCachingPolicy(cachingPolicy).parseResponse();
+            } catch (IOException e) {
+                if(!retryOnStaleConnection || !request.isIdempotent() || !socket.closeIfReplayable(e)) throw e;
+                //each retry closes a pooled connection, and a new one isn't retried, so this doesn't go on forever
+                socket = request.connectNow(connectionPool);
+            }
+        }
+    }
+
+    //same as exchange, but on non-blocking transports no thread waits for the server: body is written and the
+    //response head is read from event loop callbacks (see ResponseReader). done is run on the executor
+    private void exchangeLater(byte[] body, Executor executor, BiConsumer<HttpResponse, Throwable> done) {
+        if(!socket.isNonBlocking()) {
+            HttpResponse response;
+            try {
+                response = exchange(body);
+            } catch (Throwable t) {
+                done.accept(null, t);
+                return;
+            }
+            done.accept(response, null);
+            return;
+        }
+        HttpSocket socket = this.socket;
+        Consumer<IOException> written = e -> {
+            if(e != null) {
+                retryLater(socket, e, body, executor, done);
+                return;
+            }
+            HttpResponse response = HttpResponse.from(socket, request).setCache(cache).setCachingPolicy(cachingPolicy);
+            new ResponseReader(socket, response).start().whenComplete((parsed, failure) -> {
+                if(failure != null) retryLater(socket, failure, body, executor, done);
+                else executor.execute(() -> done.accept(parsed, null));
+            });
+        };
+        if(body == null && bodyFile != null) { //files are still streamed on this thread
+            try {
+                socket.sendFile(bodyFile);
+            } catch (IOException e) {
+                written.accept(e);
+                return;
+            }
+            written.accept(null);
+        } else {
+            socket.writeLater(body, written);
+        }
+    }
+
+    //retry rules are the same as in exchange
+    private void retryLater(HttpSocket socket, Throwable failure, byte[] body, Executor executor,
+                            BiConsumer<HttpResponse, Throwable> done) {
+        if(!(failure instanceof IOException) || !retryOnStaleConnection || !request.isIdempotent()
+                || !socket.closeIfReplayable((IOException)failure)) {
+            executor.execute(() -> done.accept(null, failure));
+            return;
+        }
+        try {
+            request.connectLater(connectionPool, new ConnectionPool.Callbacks() {
+                @Override
+                public void onConnectionObtained(HttpSocket connection) {
+                    HttpTransaction.this.socket = connection;
+                    exchangeLater(body, executor, done);
+                }
+
+                @Override
+                public void onTimeout() {
+                    done.accept(null, new TimeoutException("Timed out waiting for a connection"));
+                }
+
+                @Override
+                public void onExceptionThrown(IOException ex) {
+                    done.accept(null, ex);
+                }
+            }, executor);
+        } catch (IOException e) {
+            executor.execute(() -> done.accept(null, e));
+        }
+    }
+
+    private void writeBody(byte[] body) throws IOException {
+        if(body != null) socket.write(body);
+        else if(bodyFile != null) socket.sendFile(bodyFile);
+    }
+
     private void cache() {
         if(cachingPolicy.shouldStoreInCache(request, response)) {
             cache.putStatus(request, response.getStatus());
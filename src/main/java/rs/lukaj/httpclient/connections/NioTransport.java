@@ -0,0 +1,482 @@
+package rs.lukaj.httpclient.connections;
+
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Transport over a non-blocking {@link SocketChannel}, driven by an {@link EventLoop}. Plain HTTP only.
+ * <br/>
+ * Reading: the loop reads whatever the server sends into the inbound buffer as soon as it arrives and wakes up
+ * readers. If the buffer fills up, the loop stops reading until someone consumes it (so a slow reader slows down
+ * the server, instead of us buffering unboundedly).
+ * <br/>
+ * Writing: writer tries to write directly from its own thread. If the socket's send buffer is full, the writer parks
+ * until the loop reports the channel is writable again, unless it used {@link #writeLater(ByteBuffer[], Consumer)},
+ * in which case the rest is written once the loop reports it, on the {@link ReaderScheduler}.
+ */
+class NioTransport implements Transport, EventLoop.Handler {
+    static final int INBOUND_BUFFER_SIZE = 16_384;
+
+    private enum State {
+        CONNECTING, OPEN, CLOSED
+    }
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private SelectionKey key; //only touched on the loop thread
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition stateChanged = lock.newCondition();
+    private final ReentrantLock writeLock = new ReentrantLock(); //serializes writers, so their bytes don't interleave
+    private final ByteBuffer inbound = BufferPool.getDefault().leaseDirect(INBOUND_BUFFER_SIZE);
+    private State state = State.CONNECTING;
+    private boolean eof = false;
+    private boolean readPaused = false;
+    private boolean writable = true;
+    private boolean inboundReleased = false;
+    private IOException failure;
+    private Runnable readableCallback;
+    private Runnable writableCallback;
+    private volatile int readTimeout = 0;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return NioTransport.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return NioTransport.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return state == State.CLOSED ? 0 : inbound.remaining();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            NioTransport.this.close();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            NioTransport.this.write(ByteBuffer.wrap(new byte[] {(byte)b}));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            NioTransport.this.write(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            NioTransport.this.close();
+        }
+    };
+
+    private NioTransport(SocketChannel channel, EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+        inbound.flip(); //inbound is kept in "read mode" between loop reads
+    }
+
+    /**
+     * Open a non-blocking connection to the endpoint. Blocks until connection is established or connect timeout passes.
+     * @param endpoint plain HTTP endpoint
+     * @param options options applied to the channel before connecting
+     * @return connected transport
+     * @throws IOException if connection cannot be established
+     */
+    static NioTransport open(Endpoint endpoint, SocketOptions options) throws IOException {
+        if(endpoint.isHttps()) throw new IllegalArgumentException("NIO transport doesn't support HTTPS");
+        if(endpoint.getAddresses().size() > 1) { //racing is done outside of the event loop
+            SocketChannel channel = HappyEyeballs.connect(endpoint, options);
+            NioTransport transport = new NioTransport(channel, EventLoop.next());
+            try {
+                channel.configureBlocking(false);
+                transport.register(true);
+                transport.awaitConnected(options.getConnectTimeout());
+            } catch (IOException e) {
+                transport.close();
+                throw e;
+            }
+            return transport;
+        }
+        SocketChannel channel = SocketChannel.open();
+        NioTransport transport = new NioTransport(channel, EventLoop.next());
+        try {
+            options.applyTo(channel.socket());
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(new InetSocketAddress(endpoint.getAddress(), endpoint.getPort()));
+            transport.register(connected);
+            transport.awaitConnected(options.getConnectTimeout());
+        } catch (IOException e) {
+            transport.close();
+            throw e;
+        }
+        return transport;
+    }
+
+    private void register(boolean connected) {
+        loop.register(channel, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this, k -> {
+            lock.lock();
+            try {
+                if(k == null) {
+                    failure = new SocketException("Cannot register channel with event loop");
+                    state = State.CLOSED;
+                } else {
+                    key = k;
+                    if(connected && state == State.CONNECTING) state = State.OPEN;
+                }
+                stateChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    //zero timeout means waiting until the OS gives up
+    private void awaitConnected(Duration timeout) throws IOException {
+        lock.lock();
+        try {
+            long nanos = timeout.toNanos();
+            while(state == State.CONNECTING) {
+                if(timeout.isZero()) {
+                    stateChanged.await();
+                } else {
+                    if(nanos <= 0) throw new SocketTimeoutException("Connect timed out");
+                    nanos = stateChanged.awaitNanos(nanos);
+                }
+            }
+            if(failure != null) throw failure;
+            if(state == State.CLOSED) throw new SocketException("Socket closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while connecting");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //called on the loop thread
+    @Override
+    public void onReady(SelectionKey key) {
+        if(key.isConnectable()) onConnectable(key);
+        if(key.isValid() && key.isReadable()) onReadable(key);
+        if(key.isValid() && key.isWritable()) onWritable(key);
+    }
+
+    private void onConnectable(SelectionKey key) {
+        lock.lock();
+        try {
+            if(channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                state = State.OPEN;
+            }
+        } catch (IOException e) {
+            failure = e;
+            state = State.CLOSED;
+            key.cancel();
+        } finally {
+            stateChanged.signalAll();
+            lock.unlock();
+        }
+    }
+
+    private void onReadable(SelectionKey key) {
+        Runnable callback = null;
+        lock.lock();
+        try {
+            if(state == State.CLOSED) return; //inbound buffer is already back in the pool
+            inbound.compact();
+            int read;
+            try {
+                read = channel.read(inbound);
+            } catch (IOException e) {
+                failure = e;
+                read = -1;
+            }
+            inbound.flip();
+            if(read < 0) {
+                eof = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else if(inbound.remaining() == inbound.capacity()) {
+                readPaused = true; //backpressure; resumed once a reader makes some room
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if(inbound.hasRemaining() || eof) {
+                callback = readableCallback;
+                readableCallback = null;
+            }
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if(callback != null) callback.run();
+    }
+
+    private void onWritable(SelectionKey key) {
+        Runnable callback;
+        lock.lock();
+        try {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writable = true;
+            callback = writableCallback;
+            writableCallback = null;
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if(callback != null) callback.run();
+    }
+
+    private void addInterest(int op) {
+        loop.execute(() -> {
+            if(key != null && key.isValid()) key.interestOps(key.interestOps() | op);
+        });
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) return 0;
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+            while(state == State.CLOSED || !inbound.hasRemaining()) {
+                if(state == State.CLOSED) throw new SocketException("Socket closed");
+                if(failure != null) throw failure;
+                if(eof) return -1;
+                if(readTimeout == 0) {
+                    stateChanged.await();
+                } else {
+                    if(nanos <= 0) throw new SocketTimeoutException("Read timed out");
+                    nanos = stateChanged.awaitNanos(nanos);
+                }
+            }
+            int n = Math.min(len, inbound.remaining());
+            inbound.get(b, off, n);
+            if(readPaused) {
+                readPaused = false;
+                addInterest(SelectionKey.OP_READ);
+            }
+            return n;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while reading");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(ByteBuffer src) throws IOException {
+        writeLock.lock();
+        try {
+            while(src.hasRemaining()) {
+                if(channel.write(src) == 0) awaitWritable();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for(ByteBuffer buffer : buffers) remaining += buffer.remaining();
+        writeLock.lock();
+        try {
+            while(remaining > 0) {
+                long written = channel.write(buffers);
+                if(written == 0) awaitWritable();
+                remaining -= written;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void writeLater(ByteBuffer[] buffers, Consumer<IOException> done) {
+        boolean written;
+        IOException error = null;
+        writeLock.lock();
+        try {
+            written = writeReady(buffers);
+        } catch (IOException e) {
+            written = true; //as far as we'll get
+            error = e;
+        } finally {
+            writeLock.unlock();
+        }
+        if(written) {
+            done.accept(error);
+            return;
+        }
+        lock.lock();
+        try {
+            if(state != State.CLOSED) { //otherwise, the next try finds out it's closed
+                writable = false;
+                //the loop only hands it over; writing waits for writeLock, and loop mustn't block
+                writableCallback = () -> ReaderScheduler.get().execute(() -> writeLater(buffers, done));
+                addInterest(SelectionKey.OP_WRITE);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        ReaderScheduler.get().execute(() -> writeLater(buffers, done));
+    }
+
+    //writes as much as the socket takes right now; returns whether everything is written
+    private boolean writeReady(ByteBuffer[] buffers) throws IOException {
+        while(true) {
+            boolean left = false;
+            for(ByteBuffer buffer : buffers) left |= buffer.hasRemaining();
+            if(!left) return true;
+            if(channel.write(buffers) == 0) return false;
+        }
+    }
+
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        writeLock.lock();
+        try {
+            long end = position + count;
+            while(position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if(sent == 0) {
+                    if(position >= file.size()) throw new EOFException("File is shorter than expected");
+                    awaitWritable();
+                }
+                position += sent;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        lock.lock();
+        try {
+            writable = false;
+            addInterest(SelectionKey.OP_WRITE);
+            long nanos = TimeUnit.MILLISECONDS.toNanos(readTimeout); //no separate write timeout; reusing read one
+            while(!writable) {
+                if(state == State.CLOSED) throw new SocketException("Socket closed");
+                if(readTimeout == 0) {
+                    stateChanged.await();
+                } else {
+                    if(nanos <= 0) throw new SocketTimeoutException("Write timed out");
+                    nanos = stateChanged.awaitNanos(nanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while writing");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void setReadTimeout(int millis) {
+        readTimeout = millis;
+    }
+
+    @Override
+    public boolean whenReadable(Runnable callback) {
+        lock.lock();
+        try {
+            if(state == State.CLOSED || inbound.hasRemaining() || eof || failure != null) return false;
+            readableCallback = callback;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    @Override
+    public boolean isStale() {
+        lock.lock();
+        try { //loop keeps reading idle connections, so it has already noticed anything that arrived
+            return state == State.CLOSED || eof || failure != null || inbound.hasRemaining();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public SSLSession getTlsSession() {
+        return null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Runnable callback, writeCallback;
+        lock.lock();
+        try {
+            callback = readableCallback; //whoever is waiting will find out the socket is closed once they read
+            readableCallback = null;
+            writeCallback = writableCallback; //or write
+            writableCallback = null;
+            if(!inboundReleased) {
+                inboundReleased = true;
+                BufferPool.getDefault().release(inbound);
+            }
+            state = State.CLOSED;
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            channel.close(); //this also cancels the key
+        } finally {
+            if(callback != null) callback.run();
+            if(writeCallback != null) writeCallback.run();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package rs.lukaj.httpclient.connections;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a single endpoint in a {@link ConfigurableConnectionPool}. They're {@link LongAdder}s, so recording
+ * doesn't need the endpoint's lock and threads recording at the same time don't contend on a single variable.
+ */
+final class PoolMetrics {
+    final LongAdder acquired = new LongAdder();
+    final LongAdder reused = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder created = new LongAdder();
+    final LongAdder createFailures = new LongAdder();
+    final LongAdder closed = new LongAdder();
+    final LongAdder evictedIdle = new LongAdder();
+    final LongAdder evictedMaxAge = new LongAdder();
+    final LongAdder evictedStale = new LongAdder();
+    final LongAdder evictedForRoom = new LongAdder();
+    final LongAdder evictedKeepAlive = new LongAdder();
+    private final LongAdder[] waitHistogram = new LongAdder[PoolStats.WAIT_BUCKETS_MILLIS.length + 1];
+
+    PoolMetrics() {
+        for(int i=0; i<waitHistogram.length; i++) waitHistogram[i] = new LongAdder();
+    }
+
+    /**
+     * Record that a connection was handed out to a caller.
+     * @param since {@link System#nanoTime()} at which caller asked for the connection
+     * @param reused whether the connection was used before, rather than opened for this caller
+     */
+    void acquired(long since, boolean reused) {
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+        int bucket = 0;
+        while(bucket < PoolStats.WAIT_BUCKETS_MILLIS.length && waited >= PoolStats.WAIT_BUCKETS_MILLIS[bucket]) bucket++;
+        waitHistogram[bucket].increment();
+        acquired.increment();
+        if(reused) this.reused.increment();
+    }
+
+    PoolStats snapshot(int active, int idle, int opening, int waiting) {
+        long[] histogram = new long[waitHistogram.length];
+        for(int i=0; i<histogram.length; i++) histogram[i] = waitHistogram[i].sum();
+        return new PoolStats(active, idle, opening, waiting, acquired.sum(), reused.sum(), timeouts.sum(),
+                created.sum(), createFailures.sum(), closed.sum(), evictedIdle.sum(), evictedMaxAge.sum(),
+                evictedStale.sum(), evictedForRoom.sum(), evictedKeepAlive.sum(), histogram);
+    }
+}
@@ -0,0 +1,64 @@
+package rs.lukaj.httpclient.connections;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by all connection pools: a {@link WheelTimer} which drives acquisition timeouts, an executor on
+ * which pools do their own work (opening and closing connections, reaping), and an executor on which callbacks of
+ * asynchronous callers are run. Pool's threads are created as needed and die after a minute of idling; since a
+ * connection is opened only once a slot in the pool is reserved, their number is bounded by the pools' limits, not
+ * by the number of waiting callers. Callbacks are user code, which can take however long it wants, so they get a
+ * fixed number of threads ({@link #CALLBACK_THREADS}) and queue up behind each other if all of them are busy.
+ */
+final class PoolScheduler {
+    static final long TICK_MILLIS = 10;
+    static final int CALLBACK_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static class Holder { //lazy holder; no threads are started unless something needs them
+        private static final WheelTimer TIMER = new WheelTimer(TICK_MILLIS, TimeUnit.MILLISECONDS, 512, "http-pool-timer");
+        private static final AtomicInteger count = new AtomicInteger(0);
+        private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "http-pool-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        private static final ThreadPoolExecutor CALLBACKS = new ThreadPoolExecutor(CALLBACK_THREADS, CALLBACK_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "http-pool-callback-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        static {
+            CALLBACKS.allowCoreThreadTimeOut(true); //don't keep idle threads around
+        }
+    }
+
+    private PoolScheduler() {}
+
+    /**
+     * @return timer shared by all pools
+     */
+    static WheelTimer timer() {
+        return Holder.TIMER;
+    }
+
+    /**
+     * @return executor for pools' own work, like opening connections
+     */
+    static Executor executor() {
+        return Holder.EXECUTOR;
+    }
+
+    /**
+     * @return executor for callbacks of asynchronous callers
+     */
+    static Executor callbacks() {
+        return Holder.CALLBACKS;
+    }
+}
@@ -0,0 +1,150 @@
+package rs.lukaj.httpclient.connections;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of a {@link ConfigurableConnectionPool}, or of one of its endpoints, taken at a single moment. Counts
+ * are cumulative since the pool was created.
+ * <br/>
+ * Acquisition wait times are kept in a histogram with fixed buckets ({@link #WAIT_BUCKETS_MILLIS}), so percentiles
+ * are only as precise as the bucket they fall into.
+ */
+public class PoolStats {
+    /**
+     * Upper bounds (exclusive) of acquisition wait histogram buckets, in milliseconds. There's one more bucket after
+     * these, for everything longer.
+     */
+    public static final long[] WAIT_BUCKETS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    /** Connections which are in use */
+    public final int active;
+    /** Connections which are idling in the pool */
+    public final int idle;
+    /** Connections which are being opened */
+    public final int opening;
+    /** Callers waiting for a connection */
+    public final int waiting;
+
+    /** Connections handed out to callers */
+    public final long acquired;
+    /** Connections handed out to callers which were used before, i.e. didn't need a new connection */
+    public final long reused;
+    /** Callers which gave up waiting for a connection */
+    public final long timeouts;
+    /** Connections opened, including those opened in background */
+    public final long created;
+    /** Connections which couldn't be opened because of an error */
+    public final long createFailures;
+    /** Connections closed and removed from the pool, for any reason (including evictions) */
+    public final long closed;
+    /** Idle connections closed because they idled for longer than aliveTime */
+    public final long evictedIdle;
+    /** Idle connections closed because they were older than maxAge */
+    public final long evictedMaxAge;
+    /** Idle connections closed because the server closed them, or sent something while they were idle */
+    public final long evictedStale;
+    /** Idle connections closed to make room for connections to other endpoints */
+    public final long evictedForRoom;
+    /** Idle connections closed because the server was about to close them, as announced in Keep-Alive header */
+    public final long evictedKeepAlive;
+    private final long[] waitHistogram;
+
+    PoolStats(int active, int idle, int opening, int waiting, long acquired, long reused, long timeouts, long created,
+              long createFailures, long closed, long evictedIdle, long evictedMaxAge, long evictedStale,
+              long evictedForRoom, long evictedKeepAlive, long[] waitHistogram) {
+        this.active = active;
+        this.idle = idle;
+        this.opening = opening;
+        this.waiting = waiting;
+        this.acquired = acquired;
+        this.reused = reused;
+        this.timeouts = timeouts;
+        this.created = created;
+        this.createFailures = createFailures;
+        this.closed = closed;
+        this.evictedIdle = evictedIdle;
+        this.evictedMaxAge = evictedMaxAge;
+        this.evictedStale = evictedStale;
+        this.evictedForRoom = evictedForRoom;
+        this.evictedKeepAlive = evictedKeepAlive;
+        this.waitHistogram = waitHistogram;
+    }
+
+    //sums up stats of all endpoints
+    static PoolStats sum(Iterable<PoolStats> all) {
+        int active = 0, idle = 0, opening = 0, waiting = 0;
+        long acquired = 0, reused = 0, timeouts = 0, created = 0, createFailures = 0, closed = 0;
+        long evictedIdle = 0, evictedMaxAge = 0, evictedStale = 0, evictedForRoom = 0, evictedKeepAlive = 0;
+        long[] histogram = new long[WAIT_BUCKETS_MILLIS.length + 1];
+        for(PoolStats stats : all) {
+            active += stats.active;
+            idle += stats.idle;
+            opening += stats.opening;
+            waiting += stats.waiting;
+            acquired += stats.acquired;
+            reused += stats.reused;
+            timeouts += stats.timeouts;
+            created += stats.created;
+            createFailures += stats.createFailures;
+            closed += stats.closed;
+            evictedIdle += stats.evictedIdle;
+            evictedMaxAge += stats.evictedMaxAge;
+            evictedStale += stats.evictedStale;
+            evictedForRoom += stats.evictedForRoom;
+            evictedKeepAlive += stats.evictedKeepAlive;
+            for(int i=0; i<histogram.length; i++) histogram[i] += stats.waitHistogram[i];
+        }
+        return new PoolStats(active, idle, opening, waiting, acquired, reused, timeouts, created, createFailures,
+                closed, evictedIdle, evictedMaxAge, evictedStale, evictedForRoom, evictedKeepAlive, histogram);
+    }
+
+    /**
+     * @return total number of evicted idle connections
+     */
+    public long getEvicted() {
+        return evictedIdle + evictedMaxAge + evictedStale + evictedForRoom + evictedKeepAlive;
+    }
+
+    /**
+     * @return fraction of acquisitions which got a connection that was used before, between 0 and 1
+     */
+    public double getReuseRatio() {
+        return acquired == 0 ? 0 : (double)reused / acquired;
+    }
+
+    /**
+     * @return number of acquisitions in each bucket of {@link #WAIT_BUCKETS_MILLIS}, plus one for longer waits
+     */
+    public long[] getWaitHistogram() {
+        return waitHistogram.clone();
+    }
+
+    /**
+     * Approximate a percentile of acquisition wait times by the bucket it falls into.
+     * @param percentile percentile, between 0 and 100
+     * @return upper bound of the bucket in which the percentile falls, in milliseconds, {@link Long#MAX_VALUE} if
+     *         it's longer than the last bound, or 0 if nothing was acquired yet
+     */
+    public long getWaitPercentileMillis(double percentile) {
+        if(percentile < 0 || percentile > 100) throw new IllegalArgumentException("percentile must be between 0 and 100!");
+        long total = Arrays.stream(waitHistogram).sum();
+        if(total == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for(int i=0; i<WAIT_BUCKETS_MILLIS.length; i++) {
+            seen += waitHistogram[i];
+            if(seen >= rank) return WAIT_BUCKETS_MILLIS[i];
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + active + ", idle=" + idle + ", opening=" + opening + ", waiting=" + waiting
+                + ", acquired=" + acquired + ", reused=" + reused + ", timeouts=" + timeouts + ", created=" + created
+                + ", createFailures=" + createFailures + ", closed=" + closed + ", evictedIdle=" + evictedIdle
+                + ", evictedMaxAge=" + evictedMaxAge + ", evictedStale=" + evictedStale
+                + ", evictedForRoom=" + evictedForRoom + ", evictedKeepAlive=" + evictedKeepAlive
+                + ", waitHistogram=" + Arrays.toString(waitHistogram);
+    }
+}
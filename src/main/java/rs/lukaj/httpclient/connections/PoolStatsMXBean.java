@@ -0,0 +1,42 @@
+package rs.lukaj.httpclient.connections;
+
+/**
+ * JMX view of a {@link ConfigurableConnectionPool}'s {@link PoolStats}, summed over all endpoints. Register it using
+ * {@link ConfigurableConnectionPool#registerMBean(String)}. Each attribute takes a fresh snapshot, so attributes read
+ * one after another don't necessarily add up.
+ */
+public interface PoolStatsMXBean {
+    int getActiveConnections();
+    int getIdleConnections();
+    int getOpeningConnections();
+    int getWaitingCallers();
+
+    long getAcquiredConnections();
+    long getReusedConnections();
+    double getReuseRatio();
+    long getTimeouts();
+    long getCreatedConnections();
+    long getCreateFailures();
+    long getClosedConnections();
+    long getEvictedConnections();
+
+    /**
+     * @return upper bounds of acquisition wait histogram buckets, in milliseconds
+     */
+    long[] getWaitBucketsMillis();
+
+    /**
+     * @return number of acquisitions in each bucket, plus one for waits longer than the last bound
+     */
+    long[] getWaitHistogram();
+
+    /**
+     * @return approximate median acquisition wait time, in milliseconds
+     */
+    long getWaitMedianMillis();
+
+    /**
+     * @return approximate 99th percentile of acquisition wait time, in milliseconds
+     */
+    long getWait99thPercentileMillis();
+}
@@ -0,0 +1,76 @@
+package rs.lukaj.httpclient.connections;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared threads on which responses are read in background (e.g. chunks, see
+ * {@link HttpSocket#readChunks(HttpSocket.ChunkCallbacks, Executor)}). With {@link TransportMode#NIO}, a read gives
+ * its thread back whenever it runs out of data and is rescheduled once the event loop sees more, so these reads
+ * share a bounded pool ({@link #get()}) and the number of threads doesn't depend on the number of concurrent reads.
+ * With blocking transport, a read holds its thread until it's done, and a stream which never ends would hold it
+ * forever; queueing those would leave the rest waiting behind it, so they get a thread each ({@link #blocking()}),
+ * reused once they're done. Number of such threads is capped ({@link #setMaxBlocking(int)}); once it's reached,
+ * further blocking reads are rejected instead of waiting.
+ */
+final class ReaderScheduler {
+    static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    static final int DEFAULT_MAX_BLOCKING = 256;
+
+    private static class Holder { //lazy holder; no threads are started unless something is read in background
+        private static final AtomicInteger count = new AtomicInteger(0);
+        private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "http-reader-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        static {
+            EXECUTOR.allowCoreThreadTimeOut(true); //don't keep idle threads around
+        }
+    }
+
+    private static class BlockingHolder {
+        private static final AtomicInteger count = new AtomicInteger(0);
+        private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(0, DEFAULT_MAX_BLOCKING,
+                60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "http-blocking-reader-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private ReaderScheduler() {}
+
+    /**
+     * @return executor shared by background reads which don't block while waiting for data
+     */
+    static Executor get() {
+        return Holder.EXECUTOR;
+    }
+
+    /**
+     * @return executor for background reads which block while waiting for data; runs each on its own thread, and
+     * throws {@link RejectedExecutionException} if all {@link #getMaxBlocking()} threads are taken
+     */
+    static Executor blocking() {
+        return BlockingHolder.EXECUTOR;
+    }
+
+    /**
+     * @param max maximum number of background reads over blocking transports which can be in progress at once
+     */
+    static void setMaxBlocking(int max) {
+        if(max < 1) throw new InvalidConfigException("Max blocking readers must be positive!");
+        BlockingHolder.EXECUTOR.setMaximumPoolSize(max);
+    }
+
+    static int getMaxBlocking() {
+        return BlockingHolder.EXECUTOR.getMaximumPoolSize();
+    }
+}
@@ -0,0 +1,84 @@
+package rs.lukaj.httpclient.connections;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encodes request line and headers straight into a pooled buffer, without building intermediate Strings.
+ * Output is plain bytes, ready to be handed to the socket together with the body.
+ */
+final class RequestEncoder {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] COLON = {':', ' '};
+
+    private ByteBuffer buffer;
+
+    private RequestEncoder(int sizeHint) {
+        buffer = BufferPool.getDefault().lease(sizeHint);
+    }
+
+    /**
+     * Encode the request head: request line, headers and the empty line which ends them.
+     * @param verb request method
+     * @param target request target (path and query, or '*')
+     * @param version protocol version
+     * @param headers request headers
+     * @return buffer leased from the {@link BufferPool} default pool, flipped (ready for reading); whoever
+     *         consumes it must release it
+     */
+    static ByteBuffer encodeHead(Http.Verb verb, String target, Http.Version version, Headers headers) {
+        RequestEncoder encoder = new RequestEncoder(estimateSize(target, headers));
+        encoder.put(verb.toString()).put((byte)' ').put(target).put((byte)' ').put(version.toString()).put(CRLF);
+        for(Map.Entry<String, String> header : headers.entrySet())
+            encoder.put(header.getKey()).put(COLON).put(header.getValue()).put(CRLF);
+        encoder.put(CRLF);
+        return encoder.buffer.flip();
+    }
+
+    private static int estimateSize(String target, Headers headers) {
+        int size = target.length() + 32;
+        for(Map.Entry<String, String> header : headers.entrySet())
+            size += header.getKey().length() + header.getValue().length() + 4;
+        return size + 2;
+    }
+
+    private void ensureRemaining(int n) {
+        if(buffer.remaining() >= n) return;
+        ByteBuffer larger = BufferPool.getDefault().lease(Math.max(buffer.capacity() * 2, buffer.position() + n));
+        buffer.flip();
+        larger.put(buffer);
+        BufferPool.getDefault().release(buffer);
+        buffer = larger;
+    }
+
+    private RequestEncoder put(byte b) {
+        ensureRemaining(1);
+        buffer.put(b);
+        return this;
+    }
+
+    private RequestEncoder put(byte[] bytes) {
+        ensureRemaining(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    //headers should be ASCII, but we've always sent them as UTF-8, so non-ASCII chars are encoded that way
+    private RequestEncoder put(String s) {
+        ensureRemaining(s.length());
+        byte[] array = buffer.array();
+        int pos = buffer.position(), len = s.length();
+        for(int i=0; i<len; i++) {
+            char c = s.charAt(i);
+            if(c >= 0x80) { //rare; fall back to the slow path for the rest of the string
+                buffer.position(pos);
+                return put(s.substring(i).getBytes(UTF_8));
+            }
+            array[pos++] = (byte)c;
+        }
+        buffer.position(pos);
+        return this;
+    }
+}
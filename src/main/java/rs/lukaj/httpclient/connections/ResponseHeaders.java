@@ -27,6 +27,9 @@ public class ResponseHeaders extends Headers {
     public String getConnection() {
         return getHeader("Connection");
     }
+    public String getKeepAlive() {
+        return getHeader("Keep-Alive");
+    }
     public String getContentEncoding() {
         return getHeader("Content-Encoding");
     }
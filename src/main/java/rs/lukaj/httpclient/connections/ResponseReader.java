@@ -0,0 +1,112 @@
+package rs.lukaj.httpclient.connections;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a response head in background, and its body too if it's small enough to be buffered, without parking a
+ * thread while waiting for the server. Like {@link ChunkReader}, it only takes the lines which have fully arrived;
+ * once input runs dry it gives its thread back, and continues on the {@link ReaderScheduler} when the event loop sees
+ * more. If nothing arrives for as long as the socket's read timeout, reading fails with
+ * {@link SocketTimeoutException}, as a blocking read would.
+ * <br/>
+ * Used with non-blocking transports ({@link TransportMode#NIO}); see
+ * {@link HttpTransaction#makeRequestLater(Http.Verb, String, HttpTransaction.Callbacks, java.util.concurrent.Executor)}.
+ */
+class ResponseReader implements Runnable {
+    private final HttpSocket socket;
+    private final HttpResponse response;
+    private final CompletableFuture<HttpResponse> completion = new CompletableFuture<>();
+
+    //only touched by the thread currently running this reader; handoffs go through the scheduler's queue
+    private final List<String> head = new ArrayList<>();
+    private int headStart; //index of the status line of the response being read; earlier ones are informative
+    private boolean headRead, parsed;
+    private long attempts;
+    //attempt which is waiting for input; whichever comes first, input or timeout, clears it and gets to continue
+    private final AtomicLong waiting = new AtomicLong();
+    private volatile WheelTimer.Timeout timeout;
+
+    /**
+     * @param socket socket over which the request was sent
+     * @param response response to be parsed, created for the request using
+     *                 {@link HttpResponse#from(HttpSocket, HttpRequest)}
+     */
+    ResponseReader(HttpSocket socket, HttpResponse response) {
+        this.socket = socket;
+        this.response = response;
+    }
+
+    /**
+     * Schedule reading on the shared scheduler.
+     * @return future completed with the parsed response, on the reader thread
+     */
+    CompletableFuture<HttpResponse> start() {
+        ReaderScheduler.get().execute(this);
+        return completion;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(!headRead) {
+                long attempt = ++attempts;
+                waiting.set(attempt);
+                String line = socket.readLineOrWait(() -> wake(attempt));
+                if(line == null) {
+                    await(attempt);
+                    return;
+                }
+                head.add(line);
+                if(line.isEmpty() && head.size() - 1 > headStart) { //end of a head; informative ones are followed by more
+                    if(isInformative(head.get(headStart))) headStart = head.size();
+                    else headRead = true;
+                } else if(line.isEmpty()) {
+                    headRead = true; //no status line; parser complains about it
+                }
+            }
+            if(!parsed) {
+                response.parseResponse(head.iterator());
+                parsed = true;
+            }
+            long attempt = ++attempts;
+            waiting.set(attempt);
+            if(!socket.bufferBodyOrWait(() -> wake(attempt))) {
+                await(attempt);
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            completion.completeExceptionally(e);
+            return;
+        }
+        completion.complete(response);
+    }
+
+    private static boolean isInformative(String statusLine) {
+        String[] tokens = statusLine.split(" ", 3);
+        return tokens.length > 1 && tokens[1].startsWith("1");
+    }
+
+    private void await(long attempt) {
+        int millis = socket.getReadTimeout();
+        if(millis > 0)
+            timeout = PoolScheduler.timer().schedule(() -> timedOut(attempt), millis, TimeUnit.MILLISECONDS);
+    }
+
+    private void wake(long attempt) {
+        if(!waiting.compareAndSet(attempt, 0)) return; //timed out already
+        WheelTimer.Timeout timeout = this.timeout;
+        if(timeout != null) timeout.cancel();
+        ReaderScheduler.get().execute(this);
+    }
+
+    private void timedOut(long attempt) {
+        if(!waiting.compareAndSet(attempt, 0)) return;
+        completion.completeExceptionally(socket.failed(new SocketTimeoutException("Read timed out")));
+    }
+}
@@ -0,0 +1,25 @@
+package rs.lukaj.httpclient.connections;
+
+/**
+ * Denotes which idle connection the pool hands out when an endpoint has more than one. Set it on the pool using
+ * {@link ConfigurableConnectionPool.Config#setSelectionPolicy(SelectionPolicy)}.
+ */
+public enum SelectionPolicy {
+    /**
+     * The most recently released connection. Under varying load, the same few connections do most of the work and
+     * the rest idle until they're evicted, so the pool shrinks back to what the load actually needs. This is the
+     * default.
+     */
+    LIFO,
+    /**
+     * The connection which was released the longest time ago, i.e. the least recently used one. Work is spread
+     * evenly over all connections, so each one is kept warm, but none of them idle out while there's any traffic.
+     */
+    FIFO,
+    /**
+     * Two idle connections picked at random, and the one released more recently of them. Leans towards warm
+     * connections like {@link #LIFO}, but every connection gets used now and then, so they aren't left to go cold
+     * (and get closed by the server) all at once.
+     */
+    RANDOM_OF_TWO
+}
@@ -0,0 +1,131 @@
+package rs.lukaj.httpclient.connections;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
+
+/**
+ * Low-level options applied to sockets when they're opened. Set them on {@link ConfigurableConnectionPool.Config} to
+ * be used for all endpoints, or on an {@link Endpoint} to override the pool's options for that endpoint. Changes
+ * affect only connections opened afterwards.
+ */
+public class SocketOptions {
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final SocketOptions DEFAULT = new SocketOptions();
+
+    private volatile boolean tcpNoDelay = true;
+    private volatile int sendBufferSize = 0;
+    private volatile int receiveBufferSize = 0;
+    private volatile boolean keepAlive = false;
+    private volatile Duration connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile Duration readTimeout = HttpSocket.DEFAULT_READ_TIMEOUT;
+    private volatile Duration linger = null;
+
+    /**
+     * Create options with Nagle's algorithm turned off, OS-default buffers, no keepalive, 10s connect timeout,
+     * 30s read timeout and no linger.
+     */
+    public SocketOptions() {
+    }
+
+    /**
+     * @return options used when neither pool nor endpoint have their own
+     */
+    public static SocketOptions getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Set TCP_NODELAY, i.e. turn off Nagle's algorithm. With it on (the default), small writes are sent right away
+     * instead of waiting for the previous ones to be acknowledged. Since request head and small bodies already go out
+     * in a single write, there's little to gain from Nagle, and a lot to lose when it meets delayed ACKs.
+     * @param tcpNoDelay whether Nagle's algorithm should be turned off
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Set SO_SNDBUF, size of the kernel's send buffer. It's only a hint to the OS.
+     * @param sendBufferSize size in bytes; 0 leaves the OS default
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        if(sendBufferSize < 0) throw new InvalidConfigException("sendBufferSize can't be negative!");
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Set SO_RCVBUF, size of the kernel's receive buffer. It's only a hint to the OS. It's set before connecting,
+     * so buffers larger than 64K can be used for TCP window scaling.
+     * @param receiveBufferSize size in bytes; 0 leaves the OS default
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        if(receiveBufferSize < 0) throw new InvalidConfigException("receiveBufferSize can't be negative!");
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Set SO_KEEPALIVE, so the OS probes connections which are idle for a long time (usually hours, depending on OS
+     * settings) and notices dead peers.
+     * @param keepAlive whether TCP keepalive probes should be sent
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Set how long connecting can take before giving up with {@link java.net.SocketTimeoutException}.
+     * @param connectTimeout connect timeout; zero means waiting as long as the OS lets us
+     */
+    public void setConnectTimeout(Duration connectTimeout) {
+        if(connectTimeout.isNegative()) throw new InvalidConfigException("connectTimeout can't be negative!");
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Set how long reads can block waiting for data. Can be changed later for each socket using
+     * {@link HttpSocket#setReadTimeout(Duration)}.
+     * @param readTimeout read timeout; zero means reads can block indefinitely
+     */
+    public void setReadTimeout(Duration readTimeout) {
+        if(readTimeout.isNegative()) throw new InvalidConfigException("readTimeout can't be negative!");
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Set SO_LINGER: how long closing the socket blocks waiting for unsent data to be sent. Zero resets the
+     * connection on close, discarding unsent data.
+     * @param linger linger time, or null to turn linger off (close returns immediately, OS sends data in background)
+     */
+    public void setLinger(Duration linger) {
+        if(linger != null && linger.isNegative()) throw new InvalidConfigException("linger can't be negative!");
+        this.linger = linger;
+    }
+
+    Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    static int toMillis(Duration duration) {
+        return (int)Math.min(Integer.MAX_VALUE, duration.toMillis());
+    }
+
+    /**
+     * Apply options to an unconnected socket (or channel's socket adaptor). Timeouts aren't applied here; they're
+     * used when connecting and reading.
+     * @param socket socket which isn't connected yet
+     * @throws SocketException if an option can't be set
+     */
+    void applyTo(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if(sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+        if(receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+        socket.setKeepAlive(keepAlive);
+        Duration linger = this.linger;
+        if(linger != null) socket.setSoLinger(true, (int)Math.min(65_535, linger.getSeconds()));
+    }
+}
@@ -0,0 +1,198 @@
+package rs.lukaj.httpclient.connections;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Configuration of TLS for HTTPS connections. Set it on {@link ConfigurableConnectionPool.Config} to be used for all
+ * endpoints, or on an {@link Endpoint} to override the pool's config for that endpoint.
+ * <br/>
+ * Full TLS handshake costs a couple of round trips and some expensive crypto, so the more connections are opened,
+ * the more it pays off to resume previous sessions instead. Sessions are cached by the {@link SSLContext}, keyed by
+ * host and port; the cache size and session lifetime can be set here. Handshake times and how many of them resumed
+ * a session are counted in {@link #getStats()}.
+ */
+public class TlsConfig {
+    private static final TlsConfig DEFAULT = new TlsConfig();
+
+    private volatile SSLContext sslContext;
+    private volatile String[] protocols = {"TLSv1.3", "TLSv1.2"};
+    private volatile String[] applicationProtocols = {};
+    private int sessionCacheSize = -1;
+    private Duration sessionTimeout;
+    private boolean sessionContextConfigured = false;
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder handshakeNanos = new LongAdder();
+
+    /**
+     * Create config using the JVM's default {@link SSLContext}, TLS 1.3 and 1.2, and no ALPN.
+     */
+    public TlsConfig() {
+    }
+
+    /**
+     * @return config used when neither pool nor endpoint have their own
+     */
+    public static TlsConfig getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Set SSL context used for creating sockets. Use this to supply custom trust or key managers. If not set,
+     * {@link SSLContext#getDefault()} is used.
+     * @param sslContext context used for new connections
+     */
+    public void setSslContext(SSLContext sslContext) {
+        if(sslContext == null) throw new InvalidConfigException("sslContext can't be null!");
+        synchronized (this) {
+            this.sslContext = sslContext;
+            sessionContextConfigured = false;
+        }
+    }
+
+    /**
+     * Set which protocol versions can be negotiated, in order of preference. Protocols not supported by the
+     * context are skipped.
+     * @param protocols protocol names, e.g. "TLSv1.3", "TLSv1.2"
+     */
+    public void setProtocols(String... protocols) {
+        if(protocols.length == 0) throw new InvalidConfigException("At least one protocol must be enabled!");
+        this.protocols = protocols.clone();
+    }
+
+    /**
+     * Set application protocols offered using ALPN, in order of preference. Empty (the default) means ALPN isn't
+     * used. This client speaks only HTTP/1.1, so "http/1.1" is the only sensible value; it's still useful for
+     * servers which require ALPN.
+     * @param applicationProtocols protocol ids, e.g. "http/1.1"
+     */
+    public void setApplicationProtocols(String... applicationProtocols) {
+        this.applicationProtocols = applicationProtocols.clone();
+    }
+
+    /**
+     * Set how many sessions can be cached for resumption. Note that the cache belongs to the SSL context, so this
+     * affects everyone using the same context (including the JVM-wide default one, if no custom context is set).
+     * @param sessionCacheSize maximum number of cached sessions; 0 means no limit
+     */
+    public void setSessionCacheSize(int sessionCacheSize) {
+        if(sessionCacheSize < 0) throw new InvalidConfigException("sessionCacheSize can't be negative!");
+        synchronized (this) {
+            this.sessionCacheSize = sessionCacheSize;
+            sessionContextConfigured = false;
+        }
+    }
+
+    /**
+     * Set for how long cached sessions can be resumed. Same as with cache size, this applies to the whole context.
+     * @param sessionTimeout session lifetime; zero means no limit
+     */
+    public void setSessionTimeout(Duration sessionTimeout) {
+        if(sessionTimeout.isNegative()) throw new InvalidConfigException("sessionTimeout can't be negative!");
+        synchronized (this) {
+            this.sessionTimeout = sessionTimeout;
+            sessionContextConfigured = false;
+        }
+    }
+
+    private synchronized SSLContext getContext() throws IOException {
+        if(sslContext == null) {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Cannot obtain default SSL context", e);
+            }
+        }
+        if(!sessionContextConfigured) {
+            SSLSessionContext sessions = sslContext.getClientSessionContext();
+            if(sessionCacheSize >= 0) sessions.setSessionCacheSize(sessionCacheSize);
+            if(sessionTimeout != null) sessions.setSessionTimeout((int)Math.min(Integer.MAX_VALUE, sessionTimeout.getSeconds()));
+            sessionContextConfigured = true;
+        }
+        return sslContext;
+    }
+
+    /**
+     * Layer TLS over a connected socket and do the handshake. Host and port are passed along, so the session can be
+     * resumed next time we connect to the same endpoint.
+     * @param plain connected socket
+     * @param endpoint endpoint the socket is connected to
+     * @return socket with finished handshake
+     * @throws IOException if handshake fails
+     */
+    SSLSocket handshake(Socket plain, Endpoint endpoint) throws IOException {
+        SSLContext context = getContext();
+        SSLSocket socket = (SSLSocket)context.getSocketFactory().createSocket(plain, endpoint.getHost(), endpoint.getPort(), true);
+        List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getProtocols());
+        SSLParameters params = socket.getSSLParameters();
+        params.setProtocols(Arrays.stream(protocols).filter(supported::contains).toArray(String[]::new));
+        if(applicationProtocols.length > 0) params.setApplicationProtocols(applicationProtocols);
+        socket.setSSLParameters(params);
+
+        long startMillis = System.currentTimeMillis(), start = System.nanoTime();
+        socket.startHandshake();
+        handshakeNanos.add(System.nanoTime() - start);
+        handshakes.increment();
+        SSLSession session = socket.getSession();
+        //resumed session keeps the creation time of the original one
+        if(session.getCreationTime() < startMillis) resumed.increment();
+        return socket;
+    }
+
+    /**
+     * @return snapshot of handshake counters for connections made using this config
+     */
+    public Stats getStats() {
+        return new Stats(handshakes.sum(), resumed.sum(), handshakeNanos.sum());
+    }
+
+    /**
+     * Handshake counters of a {@link TlsConfig}, taken at a single moment.
+     */
+    public static class Stats {
+        /** Number of completed handshakes */
+        public final long handshakes;
+        /** Number of handshakes which resumed a previous session */
+        public final long resumed;
+        /** Total time spent in handshakes, in nanoseconds */
+        public final long handshakeNanos;
+
+        private Stats(long handshakes, long resumed, long handshakeNanos) {
+            this.handshakes = handshakes;
+            this.resumed = resumed;
+            this.handshakeNanos = handshakeNanos;
+        }
+
+        /**
+         * @return average handshake duration
+         */
+        public Duration getAverageHandshakeTime() {
+            return handshakes == 0 ? Duration.ZERO : Duration.ofNanos(handshakeNanos / handshakes);
+        }
+
+        /**
+         * @return fraction of handshakes which resumed a session, between 0 and 1
+         */
+        public double getResumptionRatio() {
+            return handshakes == 0 ? 0 : (double)resumed / handshakes;
+        }
+
+        @Override
+        public String toString() {
+            return "handshakes=" + handshakes + ", resumed=" + resumed + ", averageHandshakeTime="
+                    + getAverageHandshakeTime().toNanos() / 1000 + "us";
+        }
+    }
+}
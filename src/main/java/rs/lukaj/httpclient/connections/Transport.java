@@ -0,0 +1,93 @@
+package rs.lukaj.httpclient.connections;
+
+import javax.net.ssl.SSLSession;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/**
+ * Moves raw bytes between {@link HttpSocket} and the server. HttpSocket takes care of HTTP-specific details
+ * (lines, chunks, leasing), transport only knows how to push and pull bytes.
+ * @see TransportMode
+ */
+interface Transport extends Closeable {
+    /**
+     * @return stream of bytes coming from the server; reads block at most for read timeout
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return stream used for sending bytes to the server
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Write all bytes remaining in the buffers, in order, using as few writes (syscalls) as possible. Blocks until
+     * everything is written.
+     * @param buffers data to be sent; positions are advanced past the written bytes
+     * @throws IOException if I/O error occurs
+     */
+    void write(ByteBuffer[] buffers) throws IOException;
+
+    /**
+     * Send a region of the file to the server, without loading it onto the heap. Where possible, bytes are moved
+     * from the file to the socket by the kernel, without being copied to user space at all.
+     * @param file file to send from
+     * @param position position in the file of the first byte to send
+     * @param count number of bytes to send
+     * @throws IOException if file cannot be read or I/O error occurs on the socket
+     */
+    void sendFile(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Write all buffers without parking the calling thread: whatever the socket can't take right now is written once
+     * it becomes writable again. Blocking transports simply write, on the calling thread.
+     * @param buffers data to be sent; consumed, but not released
+     * @param done run once everything is written, with null, or with the exception if writing failed; it can be run
+     *             on an arbitrary thread, so it shouldn't block
+     */
+    void writeLater(ByteBuffer[] buffers, Consumer<IOException> done);
+
+    /**
+     * Set how long reads can block waiting for data.
+     * @param millis timeout in milliseconds, 0 for no timeout
+     */
+    void setReadTimeout(int millis) throws IOException;
+
+    /**
+     * Ask to be notified once there's something to read (data, end of stream or an error), so the caller doesn't
+     * have to park a thread in a read. Only non-blocking transports support this.
+     * @param callback run once, on an arbitrary thread, when input becomes ready; it shouldn't block
+     * @return true if callback will be run later; false if input is ready right now or transport doesn't support
+     *         notifications, in which case callback is never run and caller should just read
+     */
+    boolean whenReadable(Runnable callback);
+
+    /**
+     * @return whether waiting for input can be left to {@link #whenReadable(Runnable)}, instead of blocking a thread
+     */
+    boolean isNonBlocking();
+
+    /**
+     * Check whether the server has closed the connection, or sent something while nobody asked for anything. Meant
+     * for idle connections; caller must make sure nobody reads at the same time. Doesn't block, or blocks very
+     * briefly if the transport can't check otherwise.
+     * @return true if connection can't be used for another request
+     * @throws IOException if the check itself fails
+     */
+    boolean isStale() throws IOException;
+
+    /**
+     * @return TLS session of this connection, or null if it isn't encrypted
+     */
+    SSLSession getTlsSession();
+
+    /**
+     * @return true if this transport has been closed locally
+     */
+    boolean isClosed();
+}
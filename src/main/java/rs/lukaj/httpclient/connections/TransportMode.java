@@ -0,0 +1,23 @@
+package rs.lukaj.httpclient.connections;
+
+/**
+ * Denotes how {@link HttpSocket} talks to the network. Set it on the pool using
+ * {@link ConfigurableConnectionPool.Config#setTransportMode(TransportMode)}.
+ */
+public enum TransportMode {
+    /**
+     * Each socket is a plain {@link java.net.Socket}; a thread reading from or writing to it is blocked in the
+     * kernel until data arrives.
+     */
+    BLOCKING,
+    /**
+     * Sockets are non-blocking {@link java.nio.channels.SocketChannel}s, serviced by a small group of event loops
+     * (one per core). Readiness is tracked by the loops, so idle and waiting connections don't hold any threads in
+     * the kernel. Requests made using
+     * {@link HttpTransaction#makeRequestLater(Http.Verb, String, HttpTransaction.Callbacks, java.util.concurrent.Executor)}
+     * don't hold a thread while the body is being written or while waiting for the response head, nor for the
+     * body if it fits into the read buffer. Blocking calls (e.g. {@link HttpTransaction#makeRequest(Http.Verb, String)}
+     * or reading a large body) still wait on the calling thread. HTTPS endpoints fall back to {@link #BLOCKING}, because TLS is handled by {@link javax.net.ssl.SSLSocket}.
+     */
+    NIO
+}
@@ -0,0 +1,156 @@
+package rs.lukaj.httpclient.connections;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed wheel timer: one thread which ticks at a fixed rate and runs timeouts that have expired. Scheduling and
+ * cancelling are O(1) and don't take any locks, which makes it a good fit for lots of timeouts that mostly get
+ * cancelled before they fire (e.g. waiting for a connection). Precision is one tick.
+ * <br/>
+ * Tasks run on the timer thread, so they should be quick; anything slow should be handed off to an executor.
+ */
+final class WheelTimer {
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final String threadName;
+    private volatile long startTime;
+    private volatile Thread thread;
+    //only touched by the timer thread
+    private long tick;
+    private int scheduled;
+
+    /**
+     * @param tick duration of one tick
+     * @param unit unit of tick
+     * @param wheelSize number of buckets; rounded up to a power of two
+     * @param threadName name of the timer thread
+     */
+    WheelTimer(long tick, TimeUnit unit, int wheelSize, String threadName) {
+        if(tick <= 0) throw new IllegalArgumentException("tick must be positive!");
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for(int i=0; i<size; i++) wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.threadName = threadName;
+    }
+
+    /**
+     * Schedule a task to run once the delay passes. Thread is started on first use.
+     * @param task task to run on the timer thread
+     * @param delay delay after which task runs
+     * @param unit unit of delay
+     * @return handle which can be used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if(thread == null) start();
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+        pending.add(timeout);
+        LockSupport.unpark(thread); //in case it's sleeping because there was nothing to do
+        return timeout;
+    }
+
+    private synchronized void start() {
+        if(thread != null) return;
+        startTime = System.nanoTime();
+        Thread thread = new Thread(this::loop, threadName);
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    private void loop() {
+        while(true) {
+            if(scheduled == 0 && pending.isEmpty()) { //no need to tick while there's nothing to expire
+                LockSupport.park(this);
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+                continue;
+            }
+            long deadline = tickNanos * (tick + 1);
+            long now;
+            while((now = System.nanoTime() - startTime) < deadline)
+                LockSupport.parkNanos(deadline - now);
+
+            transferPending();
+            scheduled -= wheel[(int)(tick & mask)].expire(tick);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        for(Timeout timeout; (timeout = pending.poll()) != null; ) {
+            if(timeout.isCancelled()) continue;
+            //anything already due goes into the current bucket, so it fires on this tick
+            long due = Math.max(tick, timeout.deadline / tickNanos);
+            timeout.dueTick = due;
+            wheel[(int)(due & mask)].timeouts.add(timeout);
+            scheduled++;
+        }
+    }
+
+    private static class Bucket {
+        private final ArrayDeque<Timeout> timeouts = new ArrayDeque<>();
+
+        //returns how many timeouts were removed
+        int expire(long tick) {
+            int removed = 0;
+            for(Iterator<Timeout> it = timeouts.iterator(); it.hasNext(); ) {
+                Timeout timeout = it.next();
+                if(timeout.isCancelled()) {
+                    it.remove();
+                    removed++;
+                } else if(timeout.dueTick <= tick) { //otherwise, it's due in one of the later rounds
+                    it.remove();
+                    removed++;
+                    timeout.fire();
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline; //relative to timer's start time
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private long dueTick;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task, unless it has already run. Cancelled tasks are dropped from the wheel lazily.
+         * @return true if task won't run because of this call
+         */
+        boolean cancel() {
+            return done.compareAndSet(false, true);
+        }
+
+        boolean isCancelled() {
+            return done.get();
+        }
+
+        private void fire() {
+            if(!done.compareAndSet(false, true)) return;
+            try {
+                task.run();
+            } catch (RuntimeException e) { //don't let one bad task kill the timer
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, e);
+            }
+        }
+    }
+}
@@ -21,6 +21,8 @@
  * <br/>
  * <h3>Overview</h3>
  * {@link rs.lukaj.httpclient.connections.HttpSocket} provides a way to send raw data to client. Doesn't actually implement any HTTP.
+ * It can use either blocking sockets or non-blocking channels serviced by shared event loops, see
+ * {@link rs.lukaj.httpclient.connections.TransportMode}.
  * <br/>
  * {@link rs.lukaj.httpclient.connections.ConnectionPool} (implemented as
  * {@link rs.lukaj.httpclient.connections.ConfigurableConnectionPool}) pools HttpSockets. Implementation can be
@@ -0,0 +1,71 @@
+package rs.lukaj.httpclient.connections;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BufferPoolTest {
+
+    /**
+     * Leasing, releasing and leasing again reuses the same buffer, instead of allocating a new one.
+     */
+    @Test
+    public void reuseBuffers() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer buffer = pool.lease(5000);
+        assertEquals(8192, buffer.capacity()); //rounded up to the size class
+        pool.release(buffer);
+        assertSame(buffer, pool.lease(6000));
+        assertEquals(1, pool.getStats().allocated);
+        assertEquals(1, pool.getStats().getOutstanding());
+    }
+
+    /**
+     * Heap and direct buffers don't mix, and buffers larger than the largest size class aren't pooled.
+     */
+    @Test
+    public void directAndOversizedBuffers() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer direct = pool.leaseDirect(100);
+        assertTrue(direct.isDirect());
+        pool.release(direct);
+        assertFalse(pool.lease(100).isDirect());
+
+        ByteBuffer huge = pool.lease(BufferPool.MAX_POOLED_SIZE + 1);
+        pool.release(huge);
+        assertEquals(1, pool.getStats().discarded);
+        assertEquals(1, pool.getStats().pooledDirect);
+    }
+
+    /**
+     * With leak detection on, buffers which are never released can be traced back to where they were leased.
+     */
+    @Test
+    public void detectLeaks() {
+        BufferPool pool = new BufferPool(4);
+        pool.setLeakDetection(true);
+        ByteBuffer released = pool.lease(100);
+        pool.lease(100); //never released
+        pool.release(released);
+        assertEquals(1, pool.getSuspectedLeaks(Duration.ZERO).size());
+    }
+
+    /**
+     * With leak detection on, releasing the same buffer twice is caught, instead of letting two leases share it.
+     */
+    @Test
+    public void releaseTwice() {
+        BufferPool pool = new BufferPool(4);
+        pool.setLeakDetection(true);
+        ByteBuffer buffer = pool.lease(100);
+        pool.release(buffer);
+        assertThrows(IllegalStateException.class, () -> pool.release(buffer));
+        assertEquals(1, pool.getStats().released);
+        assertEquals(1, pool.getStats().pooledHeap);
+        assertSame(buffer, pool.lease(100));
+        assertNotSame(buffer, pool.lease(100));
+    }
+}
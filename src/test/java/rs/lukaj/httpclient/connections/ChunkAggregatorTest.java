@@ -0,0 +1,57 @@
+package rs.lukaj.httpclient.connections;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkAggregatorTest {
+
+    /**
+     * Chunked body is decoded into an aggregator and can be read as an array, a buffer or a stream.
+     */
+    @Test
+    public void aggregateChunkedBody() throws IOException {
+        byte[] raw = "5\r\nhello\r\n7\r\n, world\r\n0\r\n\r\n".getBytes(US_ASCII);
+        ChunkedInputStream in = new ChunkedInputStream(new BufferedSocketInput(new ByteArrayInputStream(raw)));
+        try(ChunkAggregator body = new ChunkAggregator()) {
+            while(in.hasMoreChunks()) body.readFrom(in, in.getRemaining());
+            assertEquals(12, body.size());
+            assertEquals("hello, world", new String(body.toByteArray(), US_ASCII));
+            assertEquals(12, body.toByteBuffer().remaining());
+            assertEquals("hello, world", new String(body.toInputStream().readAllBytes(), US_ASCII));
+        }
+    }
+
+    /**
+     * Bodies spanning multiple segments come out in order.
+     */
+    @Test
+    public void multipleSegments() throws IOException {
+        byte[] data = new byte[200_000];
+        for(int i=0; i<data.length; i++) data[i] = (byte)i;
+        try(ChunkAggregator body = new ChunkAggregator()) {
+            body.append(data, 0, 1000);
+            body.readFrom(new ByteArrayInputStream(data, 1000, data.length - 1000), data.length - 1000);
+            assertArrayEquals(data, body.toByteArray());
+            InputStream stream = body.toInputStream();
+            assertArrayEquals(data, stream.readAllBytes());
+        }
+    }
+
+    /**
+     * Aggregating more than the limit fails, and nothing is appended.
+     */
+    @Test
+    public void enforceLimit() throws IOException {
+        try(ChunkAggregator body = new ChunkAggregator(10)) {
+            body.append(new byte[8], 0, 8);
+            assertThrows(IOException.class, () -> body.append(new byte[3], 0, 3));
+            assertEquals(8, body.size());
+        }
+    }
+}
@@ -3,9 +3,12 @@ package rs.lukaj.httpclient.connections;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -55,6 +58,198 @@ public class ConfigurableConnectionPoolTest {
         example1.close();
     }
 
+    /**
+     * Released connection goes straight to the caller who's waiting for it, well before the timeout.
+     */
+    @Test
+    public void handOffReleasedConnection() throws IOException, TimeoutException, InterruptedException {
+        Endpoint endpoint = Endpoint.fromUrl("http://httpbin.org");
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(1, 1, Duration.ofMinutes(2), Duration.ofSeconds(5));
+        HttpSocket connection = pool.getConnectionBlocking(endpoint);
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ignored) {
+            }
+            connection.release();
+        });
+        releaser.start();
+        long start = System.currentTimeMillis();
+        HttpSocket second = pool.getConnectionBlocking(endpoint);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertSame(connection, second); //the same socket, handed over without reconnecting
+        assertFalse(second.acquireIfIdle());
+        releaser.join();
+        second.close();
+        assertEquals(0, pool.getPoolSize());
+    }
+
+    /**
+     * Connections idling for too long are closed in background, without anyone touching the pool.
+     */
+    @Test
+    public void evictIdleConnections() throws IOException, TimeoutException, InterruptedException {
+        Endpoint endpoint = Endpoint.fromUrl("http://httpbin.org");
+        ConfigurableConnectionPool.Config config = new ConfigurableConnectionPool.Config(8, 2, Duration.ofMillis(300), Duration.ofSeconds(2));
+        config.setReapInterval(Duration.ofMillis(100));
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(config);
+        pool.getConnectionBlocking(endpoint).release();
+        assertEquals(1, pool.getPoolSize());
+        Thread.sleep(1000);
+        assertEquals(0, pool.getPoolSize());
+        assertEquals(1, pool.getStats().evictedIdle);
+    }
+
+    /**
+     * Prewarmed connections are opened in background, and are there by the time we need them.
+     */
+    @Test
+    public void prewarmConnections() throws Exception {
+        Endpoint endpoint = Endpoint.fromUrl("http://httpbin.org");
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(8, 2, Duration.ofMinutes(2), Duration.ofSeconds(2));
+        assertEquals(2, pool.prewarm(endpoint, 3).get()); //limited by maxConnectionsPerEndpoint
+        assertEquals(2, pool.getPoolSize());
+        HttpSocket connection = pool.getConnectionBlocking(endpoint);
+        assertEquals(2, pool.getPoolSize()); //no new connections opened
+        connection.close();
+    }
+
+    /**
+     * Endpoints which differ only in socket options get their own connections, made with their own options.
+     */
+    @Test
+    public void endpointSocketOptions() throws IOException, TimeoutException {
+        Endpoint plain = Endpoint.fromUrl("http://httpbin.org");
+        SocketOptions fast = new SocketOptions(), slow = new SocketOptions();
+        fast.setReadTimeout(Duration.ofSeconds(1));
+        slow.setReadTimeout(Duration.ofSeconds(30));
+        Endpoint first = plain.withSocketOptions(fast), second = plain.withSocketOptions(slow);
+        assertNull(plain.getSocketOptions()); //deriving doesn't change the original
+        assertNotEquals(first, second);
+        assertEquals(first, plain.withSocketOptions(fast));
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(8, 1, Duration.ofMinutes(2), Duration.ofSeconds(2));
+        HttpSocket fastConnection = pool.getConnectionBlocking(first);
+        HttpSocket slowConnection = pool.getConnectionBlocking(second); //would time out if it were the same endpoint
+        assertSame(fast, fastConnection.getEndpoint().getSocketOptions());
+        assertSame(slow, slowConnection.getEndpoint().getSocketOptions());
+        assertEquals(2, pool.getEndpointStats().size());
+        fastConnection.close();
+        slowConnection.close();
+    }
+
+    /**
+     * Pool counts what happens to its connections, per endpoint and in total.
+     */
+    @Test
+    public void poolStats() throws IOException, TimeoutException {
+        Endpoint endpoint = Endpoint.fromUrl("http://httpbin.org");
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(1, 1, Duration.ofMinutes(2), Duration.ofMillis(200));
+        HttpSocket connection = pool.getConnectionBlocking(endpoint);
+        assertThrows(TimeoutException.class, () -> pool.getConnectionBlocking(endpoint));
+        connection.release();
+        connection = pool.getConnectionBlocking(endpoint); //the same one, reused
+        PoolStats stats = pool.getStats(endpoint);
+        assertEquals(1, stats.active);
+        assertEquals(2, stats.acquired);
+        assertEquals(1, stats.created);
+        assertEquals(1, stats.timeouts);
+        assertEquals(0.5, stats.getReuseRatio());
+        connection.close();
+        assertEquals(1, pool.getStats().closed);
+        assertEquals(0, pool.getStats().active);
+    }
+
+    /**
+     * Once an endpoint fails enough times in a row, pool stops trying to connect to it for a while.
+     */
+    @Test
+    public void circuitBreakerFailsFast() throws IOException {
+        CircuitBreaker.Config breaker = new CircuitBreaker.Config();
+        breaker.setConsecutiveFailures(2);
+        breaker.setOpenDuration(Duration.ofMinutes(1));
+        ConfigurableConnectionPool.Config config = new ConfigurableConnectionPool.Config();
+        config.setCircuitBreaker(breaker);
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(config);
+        Endpoint endpoint = new Endpoint("127.0.0.1", (short)1, false); //nobody listens there
+        assertThrows(ConnectException.class, () -> pool.getConnectionBlocking(endpoint));
+        assertThrows(ConnectException.class, () -> pool.getConnectionBlocking(endpoint));
+        CircuitOpenException open = assertThrows(CircuitOpenException.class, () -> pool.getConnectionBlocking(endpoint));
+        assertTrue(open.getRetryAfter().compareTo(Duration.ZERO) > 0);
+        assertEquals(2, pool.getStats(endpoint).createFailures);
+    }
+
+    /**
+     * While half-open, only probes count: late outcomes of calls let through earlier are ignored, and probes which
+     * end without an outcome give their slot back.
+     */
+    @Test
+    public void circuitBreakerCountsOnlyProbes() throws IOException, InterruptedException {
+        CircuitBreaker.Config config = new CircuitBreaker.Config();
+        config.setConsecutiveFailures(1);
+        config.setOpenDuration(Duration.ofMillis(50));
+        config.setHalfOpenProbes(2);
+        CircuitBreaker breaker = new CircuitBreaker(new Endpoint("127.0.0.1", (short)1, false), config, () -> {});
+        CircuitBreaker.Permit early = breaker.acquirePermission();
+        breaker.record(breaker.acquirePermission(), true, -1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(100);
+        CircuitBreaker.Permit first = breaker.acquirePermission(), second = breaker.acquirePermission();
+        assertThrows(CircuitOpenException.class, breaker::acquirePermission); //both probes in flight
+        breaker.record(early, true, -1);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.release(second);
+        CircuitBreaker.Permit third = breaker.acquirePermission();
+        breaker.record(first, false, 0);
+        breaker.record(first, false, 0); //counted once
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.record(third, false, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * Pipelined requests share a connection; responses come back in the order requests were sent.
+     */
+    @Test
+    public void pipelinedRequests() throws IOException, TimeoutException {
+        Endpoint endpoint = Endpoint.fromUrl("http://httpbin.org");
+        ConfigurableConnectionPool.Config config = new ConfigurableConnectionPool.Config();
+        config.setPipelineDepth(4);
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(config);
+        HttpPipeline.Exchange[] exchanges = new HttpPipeline.Exchange[4];
+        for(int i=0; i<exchanges.length; i++)
+            exchanges[i] = pool.sendPipelined(HttpRequest.create(Http.Verb.GET, "http://httpbin.org/anything/" + i));
+        for(int i=0; i<exchanges.length; i++) {
+            HttpResponse response = exchanges[i].getResponse();
+            assertEquals(200, response.getStatus().getCode().code);
+            assertTrue(response.getBodyString().contains("/anything/" + i));
+            exchanges[i].close();
+        }
+        assertEquals(1, pool.getStats(endpoint).created); //all of them went over the same connection
+        HttpRequest post = HttpRequest.create(Http.Verb.POST, "http://httpbin.org/post");
+        assertThrows(InvalidRequestException.class, () -> pool.sendPipelined(post)); //not idempotent
+    }
+
+    /**
+     * Thread holding several exchanges can close them in any order, but can't read a response before closing the
+     * exchanges ahead of it.
+     */
+    @Test
+    public void pipelinedOutOfOrder() throws IOException, TimeoutException {
+        Endpoint endpoint = Endpoint.fromUrl("http://httpbin.org");
+        ConfigurableConnectionPool.Config config = new ConfigurableConnectionPool.Config();
+        config.setPipelineDepth(4);
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(config);
+        try(HttpPipeline.Exchange first = pool.sendPipelined(HttpRequest.create(Http.Verb.GET, "http://httpbin.org/get"));
+            HttpPipeline.Exchange second = pool.sendPipelined(HttpRequest.create(Http.Verb.GET, "http://httpbin.org/get"))) {
+            assertThrows(IllegalStateException.class, second::getResponse);
+            assertEquals(200, first.getResponse().getStatus().getCode().code);
+        } //closed in reverse
+        try(HttpPipeline.Exchange third = pool.sendPipelined(HttpRequest.create(Http.Verb.GET, "http://httpbin.org/get"))) {
+            assertEquals(200, third.getResponse().getStatus().getCode().code);
+        }
+        assertEquals(1, pool.getStats(endpoint).created);
+    }
+
     /**
      * Obtaining connection without blocking the current thread (but still respecting the timeout).
      */
@@ -80,4 +275,70 @@ public class ConfigurableConnectionPoolTest {
             }
         });
     }
+
+    /**
+     * Async caller waits in line like everyone else, and times out if nobody releases the connection.
+     */
+    @Test
+    public void asyncStarvePool() throws IOException, TimeoutException, InterruptedException {
+        Endpoint endpoint = Endpoint.fromUrl("http://httpbin.org");
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(1, 1, Duration.ofMinutes(2), Duration.ofMillis(500));
+        HttpSocket connection = pool.getConnectionBlocking(endpoint);
+        CountDownLatch timedOut = new CountDownLatch(1);
+        pool.getConnectionAsync(endpoint, new ConnectionPool.Callbacks() {
+            @Override
+            public void onConnectionObtained(HttpSocket connection) {
+                fail("Connection is held by someone else, yet it was obtained");
+            }
+
+            @Override
+            public void onTimeout() {
+                timedOut.countDown();
+            }
+
+            @Override
+            public void onExceptionThrown(IOException ex) {
+                fail(ex);
+            }
+        });
+        assertTrue(timedOut.await(2, TimeUnit.SECONDS));
+        connection.close();
+    }
+
+    /**
+     * Closing the pool fails everyone waiting, and closes connections once they're released.
+     */
+    @Test
+    public void closePool() throws IOException, TimeoutException, InterruptedException {
+        Endpoint endpoint = Endpoint.fromUrl("http://httpbin.org");
+        ConfigurableConnectionPool.Config config = new ConfigurableConnectionPool.Config(2, 2, Duration.ofMinutes(2), Duration.ofSeconds(2));
+        config.setMinIdlePerEndpoint(1);
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(config);
+        HttpSocket connection = pool.getConnectionBlocking(endpoint);
+        HttpSocket other = pool.getConnectionBlocking(endpoint);
+        CountDownLatch failed = new CountDownLatch(1);
+        pool.getConnectionAsync(endpoint, new ConnectionPool.Callbacks() {
+            @Override
+            public void onConnectionObtained(HttpSocket connection) {
+                fail("Pool is closed, yet connection was obtained");
+            }
+
+            @Override
+            public void onTimeout() {
+                fail("Waiter should've been failed when pool was closed");
+            }
+
+            @Override
+            public void onExceptionThrown(IOException ex) {
+                failed.countDown();
+            }
+        });
+        pool.close();
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+        other.release();
+        assertEquals(1, pool.getPoolSize()); //the one still in use
+        connection.release();
+        assertEquals(0, pool.getPoolSize());
+        assertThrows(IllegalStateException.class, () -> pool.getConnectionBlocking(endpoint));
+    }
 }
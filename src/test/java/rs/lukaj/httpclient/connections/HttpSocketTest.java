@@ -3,10 +3,23 @@ package rs.lukaj.httpclient.connections;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class HttpSocketTest {
@@ -28,4 +41,147 @@ public class HttpSocketTest {
         //you can use socket#readLine and socket#read to read headers, response body, etc., but it'd be too cumbersome this way
         socket.close();
     }
+
+    /**
+     * Body left unread is drained on release if it's small enough, so the connection can be reused; otherwise,
+     * connection is closed.
+     */
+    @Test
+    public void unreadBodyDrainedOrClosed() throws IOException {
+        HttpRequest request = HttpRequest.create(Http.Verb.GET, "http://httpbin.org/bytes/1000");
+        HttpSocket socket = new HttpSocket(Endpoint.fromUrl("http://httpbin.org/"));
+        assertTrue(socket.acquireIfIdle());
+        request.connectNow(socket);
+        HttpResponse.from(socket, request).parseResponse();
+        socket.release();
+        assertFalse(socket.isClosed());
+
+        assertTrue(socket.acquireIfIdle());
+        socket.setMaxDrain(100);
+        request.connectNow(socket);
+        assertEquals(200, HttpResponse.from(socket, request).parseResponse().getStatus().responseCode);
+        socket.release();
+        assertTrue(socket.isClosed());
+    }
+
+    /**
+     * Chunked bodies read in background over blocking sockets don't wait for each other, even if there are more
+     * streams that never end than there are reader threads.
+     */
+    @Test
+    public void endlessChunkedStreams() throws Exception {
+        //Endpoint keeps ports as short, so ephemeral ones (usually above 32767) won't do
+        try(ServerSocket server = new ServerSocket(18007, 50, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while(true) {
+                        Socket client = server.accept();
+                        Thread serving = new Thread(() -> serveChunks(client));
+                        serving.setDaemon(true);
+                        serving.start();
+                    }
+                } catch (IOException closed) {
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            String base = "http://127.0.0.1:" + server.getLocalPort();
+            List<HttpSocket> endless = new ArrayList<>();
+            for(int i=0; i<=ReaderScheduler.THREADS; i++) {
+                HttpSocket socket = readInBackground(base + "/endless", new CompletableFuture<>());
+                endless.add(socket);
+            }
+            CompletableFuture<Void> finite = new CompletableFuture<>();
+            HttpSocket socket = readInBackground(base + "/finite", finite);
+            finite.get(5, TimeUnit.SECONDS);
+            socket.close();
+            for(HttpSocket s : endless) s.close();
+        }
+    }
+
+    /**
+     * Background chunk reads over blocking sockets are capped; once the cap is reached, reading fails right away
+     * instead of starting yet another thread, and the body can still be read on the calling thread.
+     */
+    @Test
+    public void blockingChunkReadersCapped() throws Exception {
+        int max = HttpSocket.getMaxBlockingChunkReaders();
+        try(ServerSocket server = new ServerSocket(18008, 50, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while(true) {
+                        Socket client = server.accept();
+                        Thread serving = new Thread(() -> serveChunks(client));
+                        serving.setDaemon(true);
+                        serving.start();
+                    }
+                } catch (IOException closed) {
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            HttpSocket.setMaxBlockingChunkReaders(2);
+
+            String base = "http://127.0.0.1:" + server.getLocalPort();
+            List<HttpSocket> endless = new ArrayList<>();
+            for(int i=0; i<2; i++) endless.add(readInBackground(base + "/endless", new CompletableFuture<>()));
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            HttpSocket socket = readInBackground(base + "/finite", rejected);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals("hello world", new String(socket.readAllChunks(), UTF_8));
+            socket.close();
+            for(HttpSocket s : endless) s.close();
+        } finally {
+            HttpSocket.setMaxBlockingChunkReaders(max);
+        }
+    }
+
+    //sends the request and starts reading its chunked response in background; future completes once it's read
+    private static HttpSocket readInBackground(String url, CompletableFuture<Void> done) throws IOException {
+        HttpRequest request = HttpRequest.create(Http.Verb.GET, url);
+        HttpSocket socket = new HttpSocket(Endpoint.fromUrl(url));
+        assertTrue(socket.acquireIfIdle());
+        request.connectNow(socket);
+        HttpResponse.from(socket, request).parseResponse();
+        socket.readChunks(new HttpSocket.ChunkCallbacks() {
+            @Override
+            public void onChunkReceived(byte[] chunk) {
+            }
+
+            @Override
+            public void onEndTransfer() {
+                done.complete(null);
+            }
+
+            @Override
+            public void onExceptionThrown(IOException ex) {
+                done.completeExceptionally(ex);
+            }
+        }, null);
+        return socket;
+    }
+
+    //answers with a few chunks for /finite, and with a chunk every 100ms until the client goes away otherwise
+    private static void serveChunks(Socket client) {
+        try(Socket socket = client) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+            String requestLine = in.readLine();
+            for(String line = requestLine; line != null && !line.isEmpty(); line = in.readLine()) {}
+            OutputStream out = socket.getOutputStream();
+            out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(UTF_8));
+            if(requestLine.contains("/finite")) {
+                out.write("5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n".getBytes(UTF_8));
+                out.flush();
+                return;
+            }
+            while(true) {
+                out.write("1\r\na\r\n".getBytes(UTF_8));
+                out.flush();
+                Thread.sleep(100);
+            }
+        } catch (IOException | InterruptedException gone) {
+        }
+    }
 }
@@ -3,6 +3,12 @@ package rs.lukaj.httpclient.connections;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -101,5 +107,43 @@ public class HttpTransactionTest {
         assertEquals(200, response.getStatus().responseCode);
     }
 
+    /**
+     * With NIO, async requests don't hold a thread while waiting for the server, so a single executor thread can
+     * serve many slow requests at once.
+     */
+    @Test
+    public void asyncNioTransactions() throws Exception {
+        ConfigurableConnectionPool.Config config = new ConfigurableConnectionPool.Config();
+        config.setTransportMode(TransportMode.NIO);
+        ConfigurableConnectionPool pool = new ConfigurableConnectionPool(config);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        List<CompletableFuture<Integer>> responses = new ArrayList<>();
+        for(int i=0; i<8; i++) {
+            CompletableFuture<Integer> code = new CompletableFuture<>();
+            new HttpTransaction(pool).makeRequestLater(Http.Verb.GET, "http://httpbin.org/delay/1",
+                    new HttpTransaction.Callbacks() {
+                        @Override
+                        public void onResponse(HttpResponse response) {
+                            code.complete(response.getStatus().responseCode);
+                        }
+
+                        @Override
+                        public void onTimeout() {
+                            code.completeExceptionally(new TimeoutException());
+                        }
+
+                        @Override
+                        public void onExceptionThrown(Throwable t) {
+                            code.completeExceptionally(t);
+                        }
+                    }, executor);
+            responses.add(code);
+        }
+        //one by one, these would take at least 8s
+        for(CompletableFuture<Integer> code : responses) assertEquals(200, (int)code.get(6, TimeUnit.SECONDS));
+        executor.shutdown();
+        pool.close();
+    }
+
     //I'd write some file-downloading tests here but don't know about the pretty way to do it and make it flexible
 }